@@ -0,0 +1,326 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.impl.FrameHandler;
+import com.rabbitmq.client.impl.FrameHandlerFactory;
+
+/**
+ * Opens a connection of its own every sample, to measure how fast the broker accepts connections.
+ *
+ * Each phase of opening the connection is a sub-result and a latency histogram of its own: the TCP
+ * connect, the TLS handshake if the connection manager uses SSL, the AMQP handshake and opening a
+ * channel. Connections are closed at the end of the sample, or kept open until the thread finishes
+ * to build up as many connections as a storm of reconnecting clients.
+ *
+ * The connection settings are those of the AMQP Connection Manager in scope, none of its shared
+ * connections are used.
+ */
+public class AMQPConnectSampler extends AMQPSampler implements Interruptible {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final boolean DEFAULT_OPEN_CHANNEL = true;
+    public static final boolean DEFAULT_CLOSE_CONNECTION = true;
+
+    //++ These are JMX names, and must not be changed
+    private final static String OPEN_CHANNEL = "AMQPConnectSampler.OpenChannel";
+    private final static String CLOSE_CONNECTION = "AMQPConnectSampler.CloseConnection";
+
+    private transient SocketConnectionFactory factory;
+    private transient Address[] addresses;
+    private transient ExecutorService pool;
+    private transient List<Connection> openConnections;
+
+    // the connection being opened by the current sample, for interrupt()
+    private transient volatile Socket connectingSocket;
+    private transient volatile Connection connectingConnection;
+
+    public AMQPConnectSampler() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode("500");
+
+        try {
+            initFactory();
+        } catch (Exception ex) {
+            log.error("Failed to configure connection factory : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        result.setSampleLabel(getTitle());
+        result.setSamplerData(getConnectionManager().getHost() + ":" + getConnectionManager().getPort()
+                + (factory.isSSL() ? " (SSL)" : ""));
+
+        List<SampleResult> phases = new ArrayList<SampleResult>();
+        Socket socket = null;
+        Connection connection = null;
+        result.sampleStart(); // Start timing
+        try {
+            Phase phase = new Phase(" TCP connect", LatencyHistograms.TCP_CONNECT, phases);
+            Address address = null;
+            IOException failure = null;
+            for (Address candidate : addresses) {
+                try {
+                    socket = connect(candidate);
+                    address = candidate;
+                    break;
+                } catch (IOException ex) {
+                    failure = ex; // try the next broker, like the client does
+                }
+            }
+            if (socket == null) {
+                throw failure;
+            }
+            phase.end(socket.getRemoteSocketAddress().toString());
+
+            if (factory.isSSL()) {
+                phase = new Phase(" TLS handshake", LatencyHistograms.TLS_HANDSHAKE, phases);
+                SSLSocket ssl = (SSLSocket) ((SSLSocketFactory) factory.getSocketFactory())
+                        .createSocket(socket, address.getHost(), port(address), true);
+                socket = ssl;
+                connectingSocket = ssl;
+                ssl.startHandshake();
+                phase.end(ssl.getSession().getProtocol() + " " + ssl.getSession().getCipherSuite());
+            }
+
+            phase = new Phase(" AMQP handshake", LatencyHistograms.AMQP_HANDSHAKE, phases);
+            connection = factory.newConnection(pool, socket, address);
+            connectingConnection = connection;
+            phase.end("heartbeat " + connection.getHeartbeat() + "s, frame max " + connection.getFrameMax());
+
+            if (getOpenChannel()) {
+                phase = new Phase(" channel open", LatencyHistograms.CHANNEL_OPEN, phases);
+                Channel channel = connection.createChannel();
+                phase.end("channel " + channel.getChannelNumber());
+            }
+
+            if (getCloseConnection()) {
+                phase = new Phase(" close", null, phases);
+                connection.close();
+                phase.end("closed");
+            } else {
+                openConnections.add(connection);
+                result.setResponseMessage(openConnections.size() + " connections open in this thread");
+            }
+            connection = null;
+
+            result.setResponseCodeOK();
+            if (result.getResponseMessage() == null || result.getResponseMessage().isEmpty()) {
+                result.setResponseMessage("OK");
+            }
+            result.setSuccessful(true);
+        } catch (Exception ex) {
+            log.debug(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+            closeQuietly(connection, socket);
+            SampleResult failed = phases.isEmpty() ? null : phases.get(phases.size() - 1);
+            if (failed != null && !failed.isSuccessful()) {
+                failed.sampleEnd();
+                failed.setResponseMessage(ex.toString());
+            }
+        } finally {
+            connectingSocket = null;
+            connectingConnection = null;
+            result.sampleEnd(); // End timimg
+        }
+
+        for (SampleResult phase : phases) {
+            result.addRawSubResult(phase);
+        }
+        return result;
+    }
+
+    private void initFactory() throws Exception {
+        if (factory != null) {
+            return;
+        }
+        factory = new SocketConnectionFactory();
+        getConnectionManager().configure(factory);
+        addresses = getConnectionManager().getAddresses();
+        // the connections have no consumers, one thread covers all the thread's connections
+        pool = DispatchExecutor.create(DispatchExecutor.FIXED, 1);
+        openConnections = new ArrayList<Connection>();
+    }
+
+    private Socket connect(Address address) throws IOException {
+        Socket socket = new Socket();
+        connectingSocket = socket;
+        try {
+            socket.setTcpNoDelay(true); // as the client configures its own sockets
+            socket.connect(new InetSocketAddress(address.getHost(), port(address)), factory.getConnectionTimeout());
+            return socket;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private int port(Address address) {
+        return ConnectionFactory.portOrDefault(address.getPort(), factory.isSSL());
+    }
+
+    private static void closeQuietly(Connection connection, Socket socket) {
+        try {
+            if (connection != null) {
+                connection.abort();
+            } else if (socket != null) {
+                socket.close();
+            }
+        } catch (Exception e) {
+            log.debug("Failed to close connection", e);
+        }
+    }
+
+    /**
+     * One timed phase of opening a connection, failed unless it is ended.
+     */
+    private final class Phase {
+        private final SampleResult result = new SampleResult();
+        private final String metric;
+        private final long startNanos = System.nanoTime();
+
+        Phase(String suffix, String metric, List<SampleResult> phases) {
+            this.metric = metric;
+            result.setSampleLabel(getTitle() + suffix);
+            result.setSuccessful(false);
+            result.setResponseCode("000");
+            result.sampleStart();
+            phases.add(result);
+        }
+
+        void end(String message) {
+            long elapsed = System.nanoTime() - startNanos;
+            result.sampleEnd();
+            result.setResponseCodeOK();
+            result.setResponseMessage(message);
+            result.setSuccessful(true);
+            if (metric != null) {
+                getLatencyRecorder(metric).recordValue(TimeUnit.NANOSECONDS.toMicros(elapsed));
+            }
+        }
+    }
+
+    /**
+     * @return true to open a channel on every new connection
+     */
+    public boolean getOpenChannel() {
+        return getPropertyAsBoolean(OPEN_CHANNEL, DEFAULT_OPEN_CHANNEL);
+    }
+
+    public void setOpenChannel(Boolean openChannel) {
+        setProperty(OPEN_CHANNEL, openChannel.toString());
+    }
+
+    /**
+     * @return true to close each connection at the end of its sample, false to keep them all open
+     * until the thread finishes
+     */
+    public boolean getCloseConnection() {
+        return getPropertyAsBoolean(CLOSE_CONNECTION, DEFAULT_CLOSE_CONNECTION);
+    }
+
+    public void setCloseConnection(Boolean closeConnection) {
+        setProperty(CLOSE_CONNECTION, closeConnection.toString());
+    }
+
+    @Override
+    protected void cleanup() {
+        if (openConnections != null) {
+            log.info("Closing " + openConnections.size() + " connections");
+            for (Connection connection : openConnections) {
+                try {
+                    connection.close();
+                } catch (Exception e) {
+                    closeQuietly(connection, null);
+                }
+            }
+            openConnections.clear();
+        }
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+        factory = null;
+    }
+
+    /**
+     * Aborts the connection the current sample is opening, the connections kept open by earlier
+     * samples stay open until the thread finishes.
+     */
+    @Override
+    public boolean interrupt() {
+        closeQuietly(connectingConnection, connectingSocket);
+        return true;
+    }
+
+    // opens no channel of the connection manager
+    @Override
+    protected Channel getChannel() {
+        return null;
+    }
+
+    @Override
+    protected void setChannel(Channel channel) {
+    }
+
+    /**
+     * Runs the AMQP handshake over a socket that is already connected, so that the TCP and TLS
+     * phases can be timed on their own.
+     */
+    private static final class SocketConnectionFactory extends ConnectionFactory {
+        private Socket socket; // only used by the thread calling newConnection
+
+        Connection newConnection(ExecutorService pool, Socket socket, Address address) throws IOException {
+            this.socket = socket;
+            try {
+                return newConnection(pool, new Address[] { address });
+            } finally {
+                this.socket = null;
+            }
+        }
+
+        @Override
+        protected FrameHandlerFactory createFrameHandlerFactory() throws IOException {
+            final Socket connected = socket;
+            return new FrameHandlerFactory(getConnectionTimeout(), getSocketFactory(), null, isSSL()) {
+                @Override
+                public FrameHandler create(Address address) throws IOException {
+                    return create(connected);
+                }
+            };
+        }
+    }
+}
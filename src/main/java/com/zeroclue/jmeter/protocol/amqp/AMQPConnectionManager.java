@@ -1,23 +1,29 @@
 package com.zeroclue.jmeter.protocol.amqp;
 
-import java.security.*;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.nio.file.Paths;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ExecutorService;
-
-import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.SSLContext;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
+import org.apache.jmeter.engine.util.NoThreadClone;
+import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.ThreadListener;
 import org.apache.jmeter.config.ConfigTestElement;
 import org.apache.jmeter.config.ConfigElement;
@@ -27,19 +33,16 @@ import com.rabbitmq.client.*;
 /**
  * This class is used to manage an AMQP connection. This allows multiple AMQP samples to use the
  * same connection.
+ *
+ * A single instance is shared by every JMeter thread. Each thread leases its own channel from a
+ * {@link ChannelPool}; the connection is closed when the test ends.
  */
 public class AMQPConnectionManager extends ConfigTestElement
-    implements ThreadListener {
+    implements ThreadListener, TestStateListener, NoThreadClone {
 
     private static final long serialVersionUID = 1L;
     private static final Logger log = LoggingManager.getLoggerForClass();
 
-    // these are hard-coded for now, should eventually be configurable
-    private static final String KEYSTORE_TYPE = "PKCS12";
-    private static final String TRUSTSTORE_TYPE = "JKS";
-    private static final String CERT_TYPE = "SunX509";
-    private static final String SSL_VERSION = "TLSv1.2";
-
     public static final int DEFAULT_PORT = 5672;
     public static final String DEFAULT_PORT_STRING = Integer.toString(DEFAULT_PORT);
 
@@ -50,6 +53,47 @@ public class AMQPConnectionManager extends ConfigTestElement
     public static final String DEFAULT_HEARTBEAT_STRING = Integer.toString(DEFAULT_HEARTBEAT);
 
     public static final int DEFAULT_POOL_SIZE = 1;
+    public static final String DEFAULT_POOL_SIZE_STRING = Integer.toString(DEFAULT_POOL_SIZE);
+
+    public static final String DEFAULT_DISPATCH_POOL = DispatchExecutor.FIXED;
+
+    public static final int DEFAULT_CHANNEL_POOL_SIZE = 0; // one channel per thread
+    public static final String DEFAULT_CHANNEL_POOL_SIZE_STRING = Integer.toString(DEFAULT_CHANNEL_POOL_SIZE);
+
+    public static final int DEFAULT_CHANNEL_POOL_TIMEOUT = 1000;
+    public static final String DEFAULT_CHANNEL_POOL_TIMEOUT_STRING = Integer.toString(DEFAULT_CHANNEL_POOL_TIMEOUT);
+
+    public static final int DEFAULT_CONNECTIONS = 1;
+    public static final String DEFAULT_CONNECTIONS_STRING = Integer.toString(DEFAULT_CONNECTIONS);
+
+    public static final String SELECTION_ROUND_ROBIN = "round-robin";
+    public static final String SELECTION_LEAST_LOADED = "least-loaded";
+
+    public static final String DEFAULT_CONNECTION_SELECTION = SELECTION_ROUND_ROBIN;
+
+    public static final String MODE_SHARED = "shared";
+    public static final String MODE_PER_THREAD = "one per thread";
+
+    public static final String DEFAULT_CONNECTION_MODE = MODE_SHARED;
+
+    public static final int DEFAULT_CONNECT_RATE = 0; // no limit
+    public static final String DEFAULT_CONNECT_RATE_STRING = Integer.toString(DEFAULT_CONNECT_RATE);
+
+    public static final int DEFAULT_CONNECT_JITTER = 0;
+    public static final String DEFAULT_CONNECT_JITTER_STRING = Integer.toString(DEFAULT_CONNECT_JITTER);
+
+    public static final boolean DEFAULT_AUTOMATIC_RECOVERY = true;
+
+    public static final int DEFAULT_RECOVERY_DELAY = 500;
+    public static final String DEFAULT_RECOVERY_DELAY_STRING = Integer.toString(DEFAULT_RECOVERY_DELAY);
+
+    public static final int DEFAULT_RECOVERY_MAX_DELAY = 30000;
+    public static final String DEFAULT_RECOVERY_MAX_DELAY_STRING = Integer.toString(DEFAULT_RECOVERY_MAX_DELAY);
+
+    public static final int DEFAULT_RECOVERY_TIMEOUT = 60000;
+    public static final String DEFAULT_RECOVERY_TIMEOUT_STRING = Integer.toString(DEFAULT_RECOVERY_TIMEOUT);
+
+    public static final String JMX_DOMAIN = "com.zeroclue.jmeter.protocol.amqp";
 
     private static final String VIRUTAL_HOST = "AMQPConnectionManager.VirtualHost";
     private static final String HOST = "AMQPConnectionManager.Host";
@@ -64,11 +108,38 @@ public class AMQPConnectionManager extends ConfigTestElement
     private static final String TRUST_STORE_PASSWORD = "AMQPConnectionManager.TrustStorePassword";
     private static final String TIMEOUT = "AMQPConnectionManager.Timeout";
     private static final String HEARTBEAT = "AMQPConnectionManager.Heartbeat";
+    private static final String CHANNEL_POOL_SIZE = "AMQPConnectionManager.ChannelPoolSize";
+    private static final String CHANNEL_POOL_TIMEOUT = "AMQPConnectionManager.ChannelPoolTimeout";
+    private static final String CONNECTIONS = "AMQPConnectionManager.Connections";
+    private static final String CONNECTION_SELECTION = "AMQPConnectionManager.ConnectionSelection";
+    private static final String DISPATCH_POOL = "AMQPConnectionManager.DispatchPool";
+    private static final String DISPATCH_THREADS = "AMQPConnectionManager.DispatchThreads";
+    private static final String CONNECTION_MODE = "AMQPConnectionManager.ConnectionMode";
+    private static final String CONNECT_RATE = "AMQPConnectionManager.ConnectRate";
+    private static final String CONNECT_JITTER = "AMQPConnectionManager.ConnectJitter";
+    private static final String AUTOMATIC_RECOVERY = "AMQPConnectionManager.AutomaticRecovery";
+    private static final String RECOVERY_DELAY = "AMQPConnectionManager.RecoveryDelay";
+    private static final String RECOVERY_MAX_DELAY = "AMQPConnectionManager.RecoveryMaxDelay";
+    private static final String RECOVERY_TIMEOUT = "AMQPConnectionManager.RecoveryTimeout";
 
     private transient ConnectionFactory factory;
-    private transient Connection connection;
-    private transient Channel sharedChannel;
-    private transient ExecutorService pool;
+    private transient ConnectionShard[] shards;
+    private transient Address[] addresses; // set once the factory is configured for the test
+    private transient ConcurrentMap<Thread, ConnectionShard> threadConnections;
+    private transient AtomicInteger nextThreadConnection;
+    private transient DispatchExecutor threadConnectionPool;
+    private transient Connection sharedConnection; // with a connection per thread, owned by no thread
+    private transient AtomicLong nextConnectAt;
+    private transient AtomicInteger nextShard;
+    private transient ChannelPool channelPool;
+    private transient RpcReplies rpcReplies;
+    private transient ConcurrentMap<Channel, DirectReplies> directReplyConsumers;
+    private transient ConcurrentMap<String, AMQPCounters> samplerCounters;
+    private transient List<ObjectName> mbeans;
+    private transient TimeSeriesReporter timeSeries;
+    private transient TlsContext tlsContext;
+    private transient ConnectionRecovery recovery;
+    private transient Topology topology;
 
     public AMQPConnectionManager() {
         factory = new ConnectionFactory();
@@ -226,6 +297,203 @@ public class AMQPConnectionManager extends ConfigTestElement
         setProperty(HEARTBEAT, s);
     }
 
+    protected int getChannelPoolSizeAsInt() {
+        if (getPropertyAsInt(CHANNEL_POOL_SIZE) < 1) {
+            return DEFAULT_CHANNEL_POOL_SIZE;
+        }
+        return getPropertyAsInt(CHANNEL_POOL_SIZE);
+    }
+
+    public String getChannelPoolSize() {
+        return getPropertyAsString(CHANNEL_POOL_SIZE, DEFAULT_CHANNEL_POOL_SIZE_STRING);
+    }
+
+    public void setChannelPoolSize(String s) {
+        setProperty(CHANNEL_POOL_SIZE, s);
+    }
+
+    /**
+     * @return how long a thread waits for a free channel of a full pool, 0 = forever
+     */
+    protected int getChannelPoolTimeoutAsInt() {
+        if (getPropertyAsInt(CHANNEL_POOL_TIMEOUT, DEFAULT_CHANNEL_POOL_TIMEOUT) < 0) {
+            return DEFAULT_CHANNEL_POOL_TIMEOUT;
+        }
+        return getPropertyAsInt(CHANNEL_POOL_TIMEOUT, DEFAULT_CHANNEL_POOL_TIMEOUT);
+    }
+
+    public String getChannelPoolTimeout() {
+        return getPropertyAsString(CHANNEL_POOL_TIMEOUT, DEFAULT_CHANNEL_POOL_TIMEOUT_STRING);
+    }
+
+    public void setChannelPoolTimeout(String s) {
+        setProperty(CHANNEL_POOL_TIMEOUT, s);
+    }
+
+    protected int getConnectionsAsInt() {
+        if (getPropertyAsInt(CONNECTIONS) < 1) {
+            return DEFAULT_CONNECTIONS;
+        }
+        return getPropertyAsInt(CONNECTIONS);
+    }
+
+    public String getConnections() {
+        return getPropertyAsString(CONNECTIONS, DEFAULT_CONNECTIONS_STRING);
+    }
+
+    public void setConnections(String s) {
+        setProperty(CONNECTIONS, s);
+    }
+
+    public String getConnectionSelection() {
+        return getPropertyAsString(CONNECTION_SELECTION, DEFAULT_CONNECTION_SELECTION);
+    }
+
+    public void setConnectionSelection(String s) {
+        setProperty(CONNECTION_SELECTION, s);
+    }
+
+    /**
+     * @return the kind of executor each connection dispatches consumer callbacks on
+     */
+    public String getDispatchPool() {
+        return getPropertyAsString(DISPATCH_POOL, DEFAULT_DISPATCH_POOL);
+    }
+
+    public void setDispatchPool(String s) {
+        setProperty(DISPATCH_POOL, s);
+    }
+
+    protected int getDispatchThreadsAsInt() {
+        if (getPropertyAsInt(DISPATCH_THREADS) < 1) {
+            return DEFAULT_POOL_SIZE;
+        }
+        return getPropertyAsInt(DISPATCH_THREADS);
+    }
+
+    public String getDispatchThreads() {
+        return getPropertyAsString(DISPATCH_THREADS, DEFAULT_POOL_SIZE_STRING);
+    }
+
+    public void setDispatchThreads(String s) {
+        setProperty(DISPATCH_THREADS, s);
+    }
+
+    /**
+     * @return whether all threads share the manager's connections or each opens its own
+     */
+    public String getConnectionMode() {
+        return getPropertyAsString(CONNECTION_MODE, DEFAULT_CONNECTION_MODE);
+    }
+
+    public void setConnectionMode(String s) {
+        setProperty(CONNECTION_MODE, s);
+    }
+
+    public boolean isConnectionPerThread() {
+        return MODE_PER_THREAD.equals(getConnectionMode());
+    }
+
+    /**
+     * @return the most connections opened per second across all threads, 0 = no limit
+     */
+    protected int getConnectRateAsInt() {
+        if (getPropertyAsInt(CONNECT_RATE) < 1) {
+            return DEFAULT_CONNECT_RATE;
+        }
+        return getPropertyAsInt(CONNECT_RATE);
+    }
+
+    public String getConnectRate() {
+        return getPropertyAsString(CONNECT_RATE, DEFAULT_CONNECT_RATE_STRING);
+    }
+
+    public void setConnectRate(String s) {
+        setProperty(CONNECT_RATE, s);
+    }
+
+    /**
+     * @return the most milliseconds each connection is delayed by at random
+     */
+    protected int getConnectJitterAsInt() {
+        if (getPropertyAsInt(CONNECT_JITTER) < 1) {
+            return DEFAULT_CONNECT_JITTER;
+        }
+        return getPropertyAsInt(CONNECT_JITTER);
+    }
+
+    public String getConnectJitter() {
+        return getPropertyAsString(CONNECT_JITTER, DEFAULT_CONNECT_JITTER_STRING);
+    }
+
+    public void setConnectJitter(String s) {
+        setProperty(CONNECT_JITTER, s);
+    }
+
+    /**
+     * @return true to reopen connections the broker or the network closed, instead of failing the
+     * samples using them
+     */
+    public boolean isAutomaticRecovery() {
+        return getPropertyAsBoolean(AUTOMATIC_RECOVERY, DEFAULT_AUTOMATIC_RECOVERY);
+    }
+
+    public void setAutomaticRecovery(Boolean value) {
+        setProperty(AUTOMATIC_RECOVERY, value.toString());
+    }
+
+    /**
+     * @return the milliseconds before the first attempt to reopen a lost connection, doubled on
+     * every failed attempt
+     */
+    protected int getRecoveryDelayAsInt() {
+        if (getPropertyAsInt(RECOVERY_DELAY) < 1) {
+            return DEFAULT_RECOVERY_DELAY;
+        }
+        return getPropertyAsInt(RECOVERY_DELAY);
+    }
+
+    public String getRecoveryDelay() {
+        return getPropertyAsString(RECOVERY_DELAY, DEFAULT_RECOVERY_DELAY_STRING);
+    }
+
+    public void setRecoveryDelay(String s) {
+        setProperty(RECOVERY_DELAY, s);
+    }
+
+    protected int getRecoveryMaxDelayAsInt() {
+        if (getPropertyAsInt(RECOVERY_MAX_DELAY) < 1) {
+            return DEFAULT_RECOVERY_MAX_DELAY;
+        }
+        return getPropertyAsInt(RECOVERY_MAX_DELAY);
+    }
+
+    public String getRecoveryMaxDelay() {
+        return getPropertyAsString(RECOVERY_MAX_DELAY, DEFAULT_RECOVERY_MAX_DELAY_STRING);
+    }
+
+    public void setRecoveryMaxDelay(String s) {
+        setProperty(RECOVERY_MAX_DELAY, s);
+    }
+
+    /**
+     * @return the most milliseconds a sampler waits for a lost connection to be recovered
+     */
+    protected int getRecoveryTimeoutAsInt() {
+        if (getPropertyAsInt(RECOVERY_TIMEOUT) < 1) {
+            return DEFAULT_RECOVERY_TIMEOUT;
+        }
+        return getPropertyAsInt(RECOVERY_TIMEOUT);
+    }
+
+    public String getRecoveryTimeout() {
+        return getPropertyAsString(RECOVERY_TIMEOUT, DEFAULT_RECOVERY_TIMEOUT_STRING);
+    }
+
+    public void setRecoveryTimeout(String s) {
+        setProperty(RECOVERY_TIMEOUT, s);
+    }
+
     @Override
     public void threadStarted() {
 
@@ -234,105 +502,567 @@ public class AMQPConnectionManager extends ConfigTestElement
     @Override
     public void threadFinished() {
         log.info("AMQPConnectionManager.threadFinished called");
+        if (isConnectionPerThread()) {
+            // closes the thread's channel too, so the pool discards it
+            ConnectionShard own = getThreadConnections().remove(Thread.currentThread());
+            if (own != null) {
+                own.close();
+            }
+        }
+        ChannelPool pool = getChannelPool();
+        pool.release();
+    }
+
+    @Override
+    public void testStarted() {
+        TimeSeriesReporter reporter = TimeSeriesReporter.start(this);
+        synchronized (this) {
+            timeSeries = reporter;
+        }
+    }
+
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    @Override
+    public void testEnded() {
+        log.info("AMQPConnectionManager.testEnded called");
+        TimeSeriesReporter reporter;
+        synchronized (this) {
+            reporter = timeSeries;
+            timeSeries = null;
+        }
+        // outside the lock, the reporter's last interval reads the counters of the manager
+        if (reporter != null) {
+            reporter.stop(this);
+        }
         cleanup();
     }
 
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
+
     public Channel createChannel() throws Exception {
-        log.info("Creating channel " + getVirtualHost()+":"+getPortAsInt());
+        if (isConnectionPerThread()) {
+            // counted on the single shard, which stands for all the threads' connections
+            return getConnectionShards()[0].createChannel(getThreadConnection());
+        }
+        ConnectionShard shard = selectShard();
+        if (!shard.awaitRecovery(getRecoveryTimeoutAsInt())) {
+            throw new IOException("Connection " + shard.getIndex() + " wasn't recovered within "
+                    + getRecoveryTimeoutAsInt() + " ms");
+        }
+        log.info("Creating channel " + getVirtualHost()+":"+getPortAsInt() + " on connection " + shard.getIndex());
 
-         Channel channel = getConnection().createChannel();
+         Channel channel = shard.createChannel(getConnection(shard));
          if(!channel.isOpen()){
             log.fatalError("Failed to open channel: " + channel.getCloseReason().getLocalizedMessage());
          }
         return channel;
     }
 
+    /**
+     * @return a channel on a connection of this manager rather than of the calling thread, for what
+     * all threads share and must outlive any of them, such as the RPC reply queue
+     */
+    public Channel createSharedChannel() throws Exception {
+        if (!isConnectionPerThread()) {
+            return createChannel();
+        }
+        synchronized (this) {
+            if (sharedConnection == null || !sharedConnection.isOpen()) {
+                Address[] addresses = configureFactory();
+                sharedConnection = factory.newConnection(getThreadConnectionPool(), addresses);
+                log.info("Opened a shared connection beside the thread connections");
+            }
+            return sharedConnection.createChannel();
+        }
+    }
+
+    /**
+     * @return the channel leased to the calling thread, a dead channel is replaced automatically
+     */
     public Channel getChannel() throws Exception {
-        if (sharedChannel == null) {
-            sharedChannel = getConnection().createChannel();
+        return getChannelPool().acquire(getChannelPoolTimeoutAsInt());
+    }
+
+    public synchronized ChannelPool getChannelPool() {
+        if (channelPool == null) {
+            // a thread's channel belongs to its own connection, so it can't be shared
+            channelPool = new ChannelPool(this, isConnectionPerThread() ? 0 : getChannelPoolSizeAsInt());
+            registerMBean(channelPool, "ChannelPool", "channels");
         }
-        return sharedChannel;
+        return channelPool;
     }
 
-    public Connection getConnection() throws Exception {
-        if (connection == null || !connection.isOpen()) {
-
-            factory.setVirtualHost(getVirtualHost());
-            factory.setUsername(getUsername());
-            factory.setPassword(getPassword());
-            factory.setConnectionTimeout(getTimeoutAsInt());
-            factory.setRequestedHeartbeat(getHeartbeatAsInt());
-            if (connectionSSL()) {
-                if (sslClientCert()) {
-                    factory.useSslProtocol(getSslContext());
-                } else {
-                    factory.useSslProtocol("TLS");
+    /**
+     * @return the correlation of RPC requests and replies shared by all RPC samplers
+     */
+    public synchronized RpcReplies getRpcReplies() {
+        if (rpcReplies == null) {
+            rpcReplies = new RpcReplies(this);
+        }
+        return rpcReplies;
+    }
+
+    /**
+     * @return the counters of every thread of the named sampler, registered as an MBean
+     */
+    public AMQPCounters getSamplerCounters(String sampler) {
+        ConcurrentMap<String, AMQPCounters> all = getSamplerCountersMap();
+        AMQPCounters counters = all.get(sampler);
+        if (counters == null) {
+            counters = new AMQPCounters();
+            AMQPCounters existing = all.putIfAbsent(sampler, counters);
+            if (existing != null) {
+                return existing;
+            }
+            registerMBean(counters, "Sampler", sampler);
+        }
+        return counters;
+    }
+
+    /**
+     * @return the counters of every sampler using this manager, by sampler name
+     */
+    public Map<String, AMQPCounters> getAllSamplerCounters() {
+        return Collections.unmodifiableMap(getSamplerCountersMap());
+    }
+
+    private synchronized ConcurrentMap<String, AMQPCounters> getSamplerCountersMap() {
+        if (samplerCounters == null) {
+            samplerCounters = new ConcurrentHashMap<String, AMQPCounters>();
+        }
+        return samplerCounters;
+    }
+
+    /**
+     * Exposes live counters to JMX clients such as JConsole, as
+     * <code>com.zeroclue.jmeter.protocol.amqp:type=...,manager=...,name=...</code>
+     */
+    void registerMBean(Object mbean, String type, String name) {
+        ObjectName objectName = null;
+        try {
+            objectName = new ObjectName(JMX_DOMAIN + ":type=" + type + ",manager=" + ObjectName.quote(getName())
+                    + ",name=" + ObjectName.quote(name));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName); // left over by a test that didn't end cleanly
+            }
+            server.registerMBean(mbean, objectName);
+            synchronized (this) {
+                if (mbeans == null) {
+                    mbeans = new ArrayList<ObjectName>();
                 }
+                mbeans.add(objectName);
             }
+        } catch (JMException e) {
+            log.warn("Failed to register MBean " + objectName, e);
+        }
+    }
 
-            log.info("RabbitMQ ConnectionFactory using:"
-                  +"\n\t virtual host: " + getVirtualHost()
-                  +"\n\t host: " + getHost()
-                  +"\n\t port: " + getPort()
-                  +"\n\t username: " + getUsername()
-                  +"\n\t password: " + getPassword()
-                  +"\n\t timeout: " + getTimeout()
-                  +"\n\t heartbeat: " + getHeartbeat()
-                  +"\nin " + this
-                  );
-
-            String[] hosts = getHost().split(",");
-            Address[] addresses = new Address[hosts.length];
-            for (int i = 0; i < hosts.length; i++) {
-                addresses[i] = new Address(hosts[i], getPortAsInt());
+    private synchronized void unregisterMBeans() {
+        if (mbeans == null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName objectName : mbeans) {
+            try {
+                if (server.isRegistered(objectName)) {
+                    server.unregisterMBean(objectName);
+                }
+            } catch (JMException e) {
+                log.warn("Failed to unregister MBean " + objectName, e);
             }
-            log.info("Using hosts: " + Arrays.toString(hosts) + " addresses: " + Arrays.toString(addresses));
+        }
+        mbeans = null;
+    }
 
-            pool = Executors.newFixedThreadPool(DEFAULT_POOL_SIZE);
-            connection = factory.newConnection(pool, addresses);
+    /**
+     * Starts consuming from the direct reply-to pseudo-queue on a channel, in no-ack mode as
+     * RabbitMQ requires. A channel can only have one such consumer, so samplers sharing a thread's
+     * channel share it: if the channel already has one, the given consumer is not used.
+     *
+     * @return the consumer of the channel's direct replies
+     */
+    public Consumer consumeDirectReplies(final Channel channel, Consumer consumer) throws IOException {
+        // not the channel's monitor, which the client library may hold while dispatching
+        ConcurrentMap<Channel, DirectReplies> directReplies = getDirectReplies();
+        synchronized (directReplies) {
+            DirectReplies existing = directReplies.get(channel);
+            if (existing != null) {
+                return existing.consumer;
+            }
+            String tag = channel.basicConsume(AMQPSampler.DIRECT_REPLY_TO, true, consumer);
+            directReplies.put(channel, new DirectReplies(consumer, tag));
+            channel.addShutdownListener(new ShutdownListener() {
+                @Override
+                public void shutdownCompleted(ShutdownSignalException cause) {
+                    getDirectReplies().remove(channel);
+                }
+            });
+            return consumer;
         }
-        return connection;
     }
 
-    protected void cleanup() {
-        try {
-            if (connection != null && connection.isOpen()) {
-                connection.close();
+    /**
+     * Stops consuming direct replies on a channel, e.g. before it goes back to the pool.
+     */
+    public void cancelDirectReplies(Channel channel) {
+        ConcurrentMap<Channel, DirectReplies> directReplies = getDirectReplies();
+        synchronized (directReplies) {
+            DirectReplies existing = directReplies.remove(channel);
+            if (existing == null || !channel.isOpen()) {
+                return;
             }
-            if (pool != null) {
-                pool.shutdown();
+            try {
+                channel.basicCancel(existing.tag);
+            } catch (IOException e) {
+                log.warn("Failed to cancel direct reply-to consumer " + existing.tag, e);
             }
-        } catch (IOException e) {
-            log.error("Failed to close connection", e);
         }
     }
 
-    private SSLContext getSslContext() throws Exception {
-        SSLContext c = SSLContext.getInstance(SSL_VERSION);
+    private synchronized ConcurrentMap<Channel, DirectReplies> getDirectReplies() {
+        if (directReplyConsumers == null) {
+            directReplyConsumers = new ConcurrentHashMap<Channel, DirectReplies>();
+        }
+        return directReplyConsumers;
+    }
 
-        // use the default SecureRandom implementation by setting the third param to null
-        c.init(getKeyManagers(), getTrustManagers(), null);
+    /**
+     * @return the connections opened by this manager, channels are spread across them
+     */
+    public synchronized ConnectionShard[] getConnectionShards() {
+        if (shards == null) {
+            shards = new ConnectionShard[isConnectionPerThread() ? 1 : getConnectionsAsInt()];
+            for (int i = 0; i < shards.length; i++) {
+                shards[i] = new ConnectionShard(i);
+                registerMBean(shards[i], "Connection", Integer.toString(i));
+            }
+            nextShard = new AtomicInteger();
+        }
+        return shards;
+    }
 
-        return c;
+    /**
+     * @return the shard owning the given channel, or null if it wasn't opened by this manager.
+     * With a connection per thread, the single shard counting the traffic of all of them.
+     */
+    public ConnectionShard getConnectionShard(Channel channel) {
+        if (channel == null) {
+            return null;
+        }
+        if (isConnectionPerThread()) {
+            return getConnectionShards()[0];
+        }
+        Connection owner = channel.getConnection();
+        for (ConnectionShard shard : getConnectionShards()) {
+            if (shard.getConnection() == owner) {
+                return shard;
+            }
+        }
+        return null;
     }
 
-    private KeyManager[] getKeyManagers() throws Exception {
-        KeyManagerFactory kmf = KeyManagerFactory.getInstance(CERT_TYPE);
-        kmf.init(getKeyStore(getPathToKeyStore(), getKeyStorePassword(), KEYSTORE_TYPE), getKeyStorePassword().toCharArray());
+    private ConnectionShard selectShard() {
+        ConnectionShard[] all = getConnectionShards();
+        if (all.length == 1) {
+            return all[0];
+        }
+        if (SELECTION_LEAST_LOADED.equals(getConnectionSelection())) {
+            ConnectionShard least = all[0];
+            for (ConnectionShard shard : all) {
+                if (shard.getOpenChannelCount() < least.getOpenChannelCount()) {
+                    least = shard;
+                }
+            }
+            return least;
+        }
+        return all[(nextShard.getAndIncrement() & Integer.MAX_VALUE) % all.length];
+    }
 
-        return kmf.getKeyManagers();
+    /**
+     * @return the connection of the next shard, opening it if needed
+     */
+    public Connection getConnection() throws Exception {
+        return getConnection(selectShard());
     }
 
-    private TrustManager[] getTrustManagers() throws Exception {
-        TrustManagerFactory tmf = TrustManagerFactory.getInstance(CERT_TYPE);
-        tmf.init(getKeyStore(getPathToTrustStore(), getTrustStorePassword(), TRUSTSTORE_TYPE));
+    protected synchronized Connection getConnection(ConnectionShard shard) throws Exception {
+        if (!shard.isOpen()) {
+            Address[] addresses = configureFactory();
+            DispatchExecutor pool = DispatchExecutor.create(getDispatchPool(), getDispatchThreadsAsInt());
+            log.info("Connection " + shard.getIndex() + " dispatches consumer callbacks on " + pool);
+            Connection connection = factory.newConnection(pool, addresses);
+            shard.setConnection(connection, pool);
+            watch(shard, connection);
+        }
+        return shard.getConnection();
+    }
 
-        return tmf.getTrustManagers();
+    /**
+     * Opens the connection of a shard again, on behalf of its recovery.
+     *
+     * @return null if the test ended in the meantime
+     */
+    synchronized Connection reopen(ConnectionShard shard) throws Exception {
+        if (shards == null || recovery == null) {
+            return null;
+        }
+        return getConnection(shard);
     }
 
-    private KeyStore getKeyStore(String path, String pass, String keyStoreType) throws Exception {
-        KeyStore ks = KeyStore.getInstance(keyStoreType);
-        ks.load(new FileInputStream(Paths.get(path).toAbsolutePath().toString()), pass.toCharArray());
-        return ks;
+    /**
+     * @return the exchanges, queues and bindings declared by the samplers, declared again on
+     * recovered connections
+     */
+    public synchronized Topology getTopology() {
+        if (topology == null) {
+            topology = new Topology();
+        }
+        return topology;
+    }
+
+    // starts recovering the shard if the connection is lost, rather than closed by the test
+    private void watch(final ConnectionShard shard, Connection connection) {
+        if (!isAutomaticRecovery()) {
+            return;
+        }
+        if (recovery == null) {
+            recovery = new ConnectionRecovery(this, getRecoveryDelayAsInt(), getRecoveryMaxDelayAsInt());
+        }
+        final ConnectionRecovery current = recovery;
+        connection.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException cause) {
+                if (!cause.isInitiatedByApplication()) {
+                    current.start(shard, cause);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the calling thread's own connection, opening it if needed once the connect rate
+     * allows
+     */
+    protected Connection getThreadConnection() throws Exception {
+        ConcurrentMap<Thread, ConnectionShard> all = getThreadConnections();
+        ConnectionShard own = all.get(Thread.currentThread());
+        if (own == null) {
+            own = new ConnectionShard(nextThreadConnection.getAndIncrement(), getConnectionShards()[0]);
+            all.put(Thread.currentThread(), own);
+        }
+        if (!own.isOpen()) {
+            Address[] addresses;
+            DispatchExecutor pool;
+            synchronized (this) {
+                addresses = configureFactory();
+                pool = getThreadConnectionPool();
+            }
+            awaitConnectSlot();
+            // outside the lock, so threads connect in parallel
+            own.setConnection(factory.newConnection(pool, addresses), pool);
+        }
+        return own.getConnection();
+    }
+
+    private synchronized ConcurrentMap<Thread, ConnectionShard> getThreadConnections() {
+        if (threadConnections == null) {
+            threadConnections = new ConcurrentHashMap<Thread, ConnectionShard>();
+            nextThreadConnection = new AtomicInteger();
+        }
+        return threadConnections;
+    }
+
+    // thousands of connections dispatch on one executor rather than a pool each
+    private synchronized DispatchExecutor getThreadConnectionPool() {
+        if (threadConnectionPool == null) {
+            threadConnectionPool = DispatchExecutor.create(getDispatchPool(), getDispatchThreadsAsInt());
+            log.info("Thread connections dispatch consumer callbacks on " + threadConnectionPool);
+            // so that the single shard of this mode reports on them
+            getConnectionShards()[0].aggregate(getThreadConnections().values(), threadConnectionPool);
+        }
+        return threadConnectionPool;
+    }
+
+    /**
+     * Spaces connection attempts by the connect rate, plus up to the connect jitter, so that
+     * thousands of threads starting together don't all open their connections at once.
+     */
+    private void awaitConnectSlot() throws InterruptedException {
+        int rate = getConnectRateAsInt();
+        long due = System.nanoTime();
+        if (rate > 0) {
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            AtomicLong next;
+            synchronized (this) {
+                if (nextConnectAt == null) {
+                    nextConnectAt = new AtomicLong(due);
+                }
+                next = nextConnectAt;
+            }
+            long slot;
+            do {
+                slot = next.get();
+            } while (!next.compareAndSet(slot, Math.max(slot, due) + interval));
+            due = Math.max(slot, due);
+        }
+        int jitter = getConnectJitterAsInt();
+        if (jitter > 0) {
+            due += TimeUnit.MILLISECONDS.toNanos(ThreadLocalRandom.current().nextInt(jitter));
+        }
+        long wait = due - System.nanoTime();
+        if (wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * @return the addresses of the brokers to connect to, in the order to try them
+     */
+    public Address[] getAddresses() throws Exception {
+        return configureFactory();
+    }
+
+    /**
+     * Applies the connection settings of this manager to a factory, e.g. one of a sampler opening
+     * connections of its own.
+     */
+    public void configure(ConnectionFactory f) throws Exception {
+        f.setVirtualHost(getVirtualHost());
+        f.setUsername(getUsername());
+        f.setPassword(getPassword());
+        f.setConnectionTimeout(getTimeoutAsInt());
+        f.setRequestedHeartbeat(getHeartbeatAsInt());
+        if (connectionSSL()) {
+            f.setSocketFactory(getTlsContext().getSocketFactory());
+        }
+    }
+
+    /**
+     * @return the SSL context for the key and trust stores of this manager, shared with every
+     * other manager of the JVM using the same stores
+     */
+    public TlsContext getTlsContext() throws Exception {
+        if (sslClientCert()) {
+            return TlsContext.forStores(getPathToKeyStore(), getKeyStorePassword(),
+                    getPathToTrustStore(), getTrustStorePassword());
+        }
+        return TlsContext.trustAll();
+    }
+
+    /**
+     * Applies the connection settings to the factory, once per test.
+     *
+     * @return the addresses to connect to
+     */
+    private synchronized Address[] configureFactory() throws Exception {
+        if (addresses != null) {
+            return addresses;
+        }
+        configure(factory);
+        if (connectionSSL()) {
+            tlsContext = getTlsContext();
+            registerMBean(tlsContext, "TLS", tlsContext.toString());
+        }
+
+        log.info("RabbitMQ ConnectionFactory using:"
+              +"\n\t virtual host: " + getVirtualHost()
+              +"\n\t host: " + getHost()
+              +"\n\t port: " + getPort()
+              +"\n\t username: " + getUsername()
+              +"\n\t password: " + getPassword()
+              +"\n\t timeout: " + getTimeout()
+              +"\n\t heartbeat: " + getHeartbeat()
+              +"\n\t connection mode: " + getConnectionMode()
+              +"\n\t automatic recovery: " + isAutomaticRecovery()
+              +"\nin " + this
+              );
+
+        String[] hosts = getHost().split(",");
+        Address[] all = new Address[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            all[i] = new Address(hosts[i], getPortAsInt());
+        }
+        log.info("Using hosts: " + Arrays.toString(hosts) + " addresses: " + Arrays.toString(all));
+        addresses = all;
+        return addresses;
+    }
+
+    protected synchronized void cleanup() {
+        if (rpcReplies != null) {
+            log.info(rpcReplies.getUnmatchedCount() + " RPC replies arrived late or unmatched");
+            rpcReplies.close();
+            rpcReplies = null;
+        }
+        if (recovery != null) {
+            // before closing the connections, so that closing them doesn't count as losing them
+            recovery.stop();
+            recovery = null;
+        }
+        if (shards != null) {
+            for (ConnectionShard shard : shards) {
+                shard.endRecovery(false);
+            }
+        }
+        topology = null;
+        if (channelPool != null) {
+            channelPool.close();
+            channelPool = null;
+        }
+        if (threadConnections != null) {
+            // threads that didn't finish, e.g. when the test was stopped
+            for (ConnectionShard own : threadConnections.values()) {
+                own.close();
+            }
+            log.info("Opened " + nextThreadConnection.get() + " thread connections, "
+                    + threadConnections.size() + " were still open at the end of the test");
+            threadConnections = null;
+        }
+        if (sharedConnection != null) {
+            try {
+                if (sharedConnection.isOpen()) {
+                    sharedConnection.close();
+                }
+            } catch (Exception e) {
+                log.warn("Failed to close the shared connection", e);
+            }
+            sharedConnection = null;
+        }
+        if (threadConnectionPool != null) {
+            threadConnectionPool.shutdown();
+            threadConnectionPool = null;
+        }
+        nextConnectAt = null;
+        if (shards != null) {
+            for (ConnectionShard shard : shards) {
+                shard.close();
+            }
+            shards = null;
+        }
+        addresses = null;
+        if (tlsContext != null) {
+            log.info("TLS handshakes of " + tlsContext + " so far: " + tlsContext.getHandshakeCount()
+                    + ", " + tlsContext.getResumedCount() + " resumed");
+            tlsContext = null;
+        }
+        unregisterMBeans();
+        samplerCounters = null;
+    }
+
+    private static final class DirectReplies {
+        final Consumer consumer;
+        final String tag;
+
+        DirectReplies(Consumer consumer, String tag) {
+            this.consumer = consumer;
+            this.tag = tag;
+        }
     }
 }
@@ -9,10 +9,11 @@ import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
+import org.HdrHistogram.SingleWriterRecorder;
 
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
 import com.rabbitmq.client.ConsumerCancelledException;
-import com.rabbitmq.client.QueueingConsumer;
 import com.rabbitmq.client.ShutdownSignalException;
 
 public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStateListener {
@@ -24,6 +25,20 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
     public static final int DEFAULT_RECEIVE_TIMEOUT = 1000;
     public static final String DEFAULT_RECEIVE_TIMEOUT_STRING = Integer.toString(DEFAULT_RECEIVE_TIMEOUT);
 
+    public static final int DEFAULT_BUFFER_SIZE = 1000;
+    public static final String DEFAULT_BUFFER_SIZE_STRING = Integer.toString(DEFAULT_BUFFER_SIZE);
+
+    public static final String ACK_PER_MESSAGE = "per-message";
+    public static final String ACK_BATCH = "every N messages";
+    public static final String ACK_INTERVAL = "every T ms";
+    public static final String DEFAULT_ACK_STRATEGY = ACK_PER_MESSAGE;
+
+    public static final int DEFAULT_ACK_BATCH_SIZE = 100;
+    public static final String DEFAULT_ACK_BATCH_SIZE_STRING = Integer.toString(DEFAULT_ACK_BATCH_SIZE);
+
+    public static final int DEFAULT_ACK_INTERVAL = 100;
+    public static final String DEFAULT_ACK_INTERVAL_STRING = Integer.toString(DEFAULT_ACK_INTERVAL);
+
     private static final long serialVersionUID = 7480863561320459091L;
 
     private static final Logger log = LoggingManager.getLoggerForClass();
@@ -34,11 +49,22 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
     private static final String PURGE_QUEUE = "AMQPConsumer.PurgeQueue";
     private static final String AUTO_ACK = "AMQPConsumer.AutoAck";
     private static final String RECEIVE_TIMEOUT = "AMQPConsumer.ReceiveTimeout";
+    private static final String BUFFER_SIZE = "AMQPConsumer.BufferSize";
+    private static final String ACK_STRATEGY = "AMQPConsumer.AckStrategy";
+    private static final String ACK_BATCH_SIZE = "AMQPConsumer.AckBatchSize";
+    private static final String ACK_INTERVAL_MS = "AMQPConsumer.AckInterval";
 
     private transient Channel channel;
-    private transient QueueingConsumer consumer;
+    private transient BufferedConsumer consumer;
     private transient String consumerTag;
 
+    // deliveries received but not acked yet, acked at once with multiple=true
+    private transient long unackedTag;
+    private transient int unackedCount;
+    private transient long lastAckMillis;
+    private transient int prefetch; // the prefetch count set on the channel
+    private transient Channel ownChannel; // not shared with the thread's other samplers
+
     public AMQPConsumer(){
         super();
     }
@@ -57,16 +83,7 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
         try {
             initChannel();
-
-           // only do this once per thread. Otherwise it slows down the consumption by appx 50%
-            if (consumer == null) {
-                log.info("Creating consumer");
-                consumer = new QueueingConsumer(channel);
-            }
-            if (consumerTag == null) {
-                log.info("Starting basic consumer");
-                consumerTag = channel.basicConsume(getQueue(), autoAck(), consumer);
-            }
+            subscribe();
         } catch (Exception ex) {
             log.error("Failed to initialize channel", ex);
             result.setResponseMessage(ex.toString());
@@ -80,22 +97,50 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
 
         // aggregate samples.
         int loop = getIterationsAsInt();
+        boolean manualAck = !autoAck();
+        String ackStrategy = getAckStrategy();
+        int ackBatchSize = ACK_BATCH.equals(ackStrategy) ? getAckBatchSizeAsInt() : 1;
+        long ackInterval = ACK_INTERVAL.equals(ackStrategy) ? getAckIntervalAsInt() : 0;
+        SingleWriterRecorder latencies = getLatencyRecorder(LatencyHistograms.DELIVERY);
+        long latencyMicros = 0;
+        int stamped = 0;
+        boolean resubscribed = false;
         result.sampleStart(); // Start timing
-        QueueingConsumer.Delivery delivery = null;
         try {
             for (int idx = 0; idx < loop; idx++) {
-                delivery = consumer.nextDelivery(getReceiveTimeoutAsInt());
-
-                if(delivery == null){
+                boolean received;
+                try {
+                    received = receive(getReceiveTimeoutAsInt(), ackInterval);
+                } catch (ShutdownSignalException e) {
+                    if (resubscribed || !recoverable(e)) {
+                        throw e;
+                    }
+                    resubscribe(e);
+                    resubscribed = true;
+                    idx--;
+                    continue;
+                }
+                if (!received) {
+                    // don't hold back acks the broker may be waiting for to send more
+                    flushAcks();
                     result.setResponseMessage("timed out");
                     return result;
                 }
 
+                long sentAt = SendTimestamp.read(consumer.getProperties());
+                if (sentAt > 0) {
+                    // a clock of the publishing host ahead of this one can't make it negative
+                    long latency = Math.max(0, SendTimestamp.nowMicros() - sentAt);
+                    latencies.recordValue(latency);
+                    latencyMicros += latency;
+                    stamped++;
+                }
+
                 /*
                  * Set up the sample result details
                  */
                 if (getReadResponseAsBoolean()) {
-                    byte[] body = delivery.getBody();
+                    byte[] body = consumer.getBody();
                     String response = new String(body);
                     result.setSamplerData(response);
                     result.setResponseMessage(response);
@@ -106,8 +151,34 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
                     result.setSamplerData("Read response is false.");
                 }
 
-                if(!autoAck())
-                    channel.basicAck(delivery.getEnvelope().getDeliveryTag(), false);
+                for (AMQPCounters counters : getCounters()) {
+                    counters.recordDelivered(1, consumer.getBody().length);
+                }
+
+                if (manualAck) {
+                    try {
+                        ack(consumer.getDeliveryTag(), ackBatchSize, ackInterval);
+                    } catch (ShutdownSignalException e) {
+                        if (resubscribed || !recoverable(e)) {
+                            throw e;
+                        }
+                        resubscribe(e);
+                        resubscribed = true;
+                    }
+                }
+            }
+
+            // the mean publish to delivery latency of the messages in this sample
+            if (stamped > 0) {
+                result.setLatency(latencyMicros / stamped / 1000);
+            }
+
+            long lost = consumer.takeDropped();
+            if (lost > 0 && !manualAck) {
+                result.setResponseCode("500");
+                result.setResponseMessage(lost + " auto-acked deliveries lost, the consumer buffer of "
+                        + consumer.getCapacity() + " was full");
+                return result;
             }
 
             result.setResponseCodeOK();
@@ -149,6 +220,42 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         return result;
     }
 
+    // only do this once per thread. Otherwise it slows down the consumption by appx 50%
+    private void subscribe() throws IOException {
+        if (consumer == null) {
+            log.info("Creating consumer");
+            consumer = new BufferedConsumer(channel, getBufferSizeAsInt(), autoAck(), getCounters());
+            if (autoAck()) {
+                log.warn("The prefetch count doesn't limit auto-acked deliveries, those arriving while the buffer of "
+                        + getBufferSizeAsInt() + " is full are lost and fail the sample");
+            }
+        }
+        if (consumerTag == null && isDirectReplyTo(getQueue())) {
+            log.info("Consuming direct replies");
+            consumeDirectReplies();
+        } else if (consumerTag == null) {
+            log.info("Starting basic consumer");
+            consumerTag = channel.basicConsume(getQueue(), autoAck(), consumer);
+        }
+    }
+
+    /*
+     * Consumes again once the connection manager recovered the connection. The deliveries still
+     * buffered and the acks held back are dropped, their delivery tags died with the channel and
+     * the broker redelivers them.
+     */
+    private void resubscribe(ShutdownSignalException cause) throws IOException, InterruptedException {
+        log.warn("Consumer lost its connection, consuming again once it is recovered: " + cause.getMessage());
+        if (consumer != null) {
+            consumer.close();
+        }
+        consumer = null;
+        consumerTag = null;
+        unackedCount = 0;
+        reopenChannel(cause);
+        subscribe();
+    }
+
     @Override
     protected Channel getChannel() {
         return channel;
@@ -194,7 +301,8 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
     }
 
     public boolean autoAck(){
-        return getPropertyAsBoolean(AUTO_ACK);
+        // direct replies can only be consumed in no-ack mode
+        return getPropertyAsBoolean(AUTO_ACK) || isDirectReplyTo(getQueue());
     }
 
     protected int getReceiveTimeoutAsInt() {
@@ -213,6 +321,31 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         setProperty(RECEIVE_TIMEOUT, s);
     }
 
+    /**
+     * @return the number of deliveries buffered between the dispatch thread and the sampler
+     */
+    public String getBufferSize() {
+        return getPropertyAsString(BUFFER_SIZE, DEFAULT_BUFFER_SIZE_STRING);
+    }
+
+    public void setBufferSize(String s) {
+        setProperty(BUFFER_SIZE, s);
+    }
+
+    protected int getBufferSizeAsInt() {
+        if (getPropertyAsInt(BUFFER_SIZE) < 1) {
+            return DEFAULT_BUFFER_SIZE;
+        }
+        return getPropertyAsInt(BUFFER_SIZE);
+    }
+
+    /**
+     * @return the number of deliveries waiting in this sampler's buffer
+     */
+    public int getBufferOccupancy() {
+        return consumer == null ? 0 : consumer.getOccupancy();
+    }
+
     public String getPrefetchCount() {
         return getPropertyAsString(PREFETCH_COUNT, DEFAULT_PREFETCH_COUNT_STRING);
     }
@@ -252,17 +385,173 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         return getPropertyAsBoolean(READ_RESPONSE);
     }
 
+    /**
+     * @return how deliveries are acked when auto ack is off
+     */
+    public String getAckStrategy() {
+        return getPropertyAsString(ACK_STRATEGY, DEFAULT_ACK_STRATEGY);
+    }
+
+    public void setAckStrategy(String s) {
+        setProperty(ACK_STRATEGY, s);
+    }
+
+    public String getAckBatchSize() {
+        return getPropertyAsString(ACK_BATCH_SIZE, DEFAULT_ACK_BATCH_SIZE_STRING);
+    }
+
+    public void setAckBatchSize(String s) {
+        setProperty(ACK_BATCH_SIZE, s);
+    }
+
+    protected int getAckBatchSizeAsInt() {
+        if (getPropertyAsInt(ACK_BATCH_SIZE) < 1) {
+            return DEFAULT_ACK_BATCH_SIZE;
+        }
+        return getPropertyAsInt(ACK_BATCH_SIZE);
+    }
+
+    public String getAckInterval() {
+        return getPropertyAsString(ACK_INTERVAL_MS, DEFAULT_ACK_INTERVAL_STRING);
+    }
+
+    public void setAckInterval(String s) {
+        setProperty(ACK_INTERVAL_MS, s);
+    }
+
+    protected int getAckIntervalAsInt() {
+        if (getPropertyAsInt(ACK_INTERVAL_MS) < 1) {
+            return DEFAULT_ACK_INTERVAL;
+        }
+        return getPropertyAsInt(ACK_INTERVAL_MS);
+    }
+
+    /*
+     * Waits for the next delivery, acking the deliveries held back once the ack interval is up
+     * rather than when the next delivery arrives, which it may not before they are acked.
+     */
+    private boolean receive(long timeoutMillis, long interval) throws IOException, InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (interval > 0 && unackedCount > 0) {
+            long flushAt = lastAckMillis + interval;
+            if (flushAt >= deadline) {
+                break;
+            }
+            long wait = flushAt - System.currentTimeMillis();
+            if (wait > 0 && consumer.next(wait)) {
+                return true;
+            }
+            flushAcks();
+        }
+        return consumer.next(Math.max(0, deadline - System.currentTimeMillis()));
+    }
+
+    /*
+     * Acks a delivery, or holds it back until batchSize deliveries or interval milliseconds have
+     * accumulated and acks them all at once. A multiple ack covers every delivery on the channel,
+     * which is why a consumer holding acks back has a channel of its own.
+     *
+     * The broker stops delivering once the prefetch count of deliveries is unacked, so no more
+     * than half of it is held back whatever the batch size or interval.
+     */
+    private void ack(long deliveryTag, int batchSize, long interval) throws IOException {
+        if (batchSize <= 1 && interval <= 0) {
+            channel.basicAck(deliveryTag, false);
+            recordAcked(1);
+            return;
+        }
+        if (unackedCount == 0 && interval > 0) {
+            lastAckMillis = System.currentTimeMillis();
+        }
+        unackedTag = deliveryTag;
+        unackedCount++;
+        if ((batchSize > 1 && unackedCount >= batchSize)
+                || unackedCount >= Math.max(1, prefetch / 2)
+                || (interval > 0 && System.currentTimeMillis() - lastAckMillis >= interval)) {
+            flushAcks();
+        }
+    }
+
+    private void flushAcks() throws IOException {
+        if (unackedCount == 0) {
+            return;
+        }
+        channel.basicAck(unackedTag, true);
+        recordAcked(unackedCount);
+        unackedCount = 0;
+        lastAckMillis = System.currentTimeMillis();
+    }
+
+    private void recordAcked(int messages) {
+        for (AMQPCounters counters : getCounters()) {
+            counters.recordAcked(messages);
+        }
+    }
+
+    private void flushAcksQuietly() {
+        if (unackedCount == 0 || channel == null) {
+            return;
+        }
+        try {
+            if (channel.isOpen()) {
+                flushAcks();
+            }
+        } catch (Exception e) {
+            log.warn("Failed to ack " + unackedCount + " deliveries", e);
+        }
+        unackedCount = 0;
+    }
+
     @Override
     public boolean interrupt() {
-        testEnded();
+        stopConsuming();
         return true;
     }
 
+    @Override
+    protected void cleanup() {
+        flushAcksQuietly();
+        if (consumer != null) {
+            log.info("Consumer buffer held at most " + consumer.getHighWaterMark()
+                    + " of " + consumer.getCapacity() + " deliveries, " + consumer.getDroppedCount() + " dropped");
+            consumer.close();
+        }
+        // the channel goes back to the connection manager's pool, so stop consuming on it
+        if (isDirectReplyTo(consumerTag) && channel != null) {
+            getConnectionManager().cancelDirectReplies(channel);
+        } else if (consumerTag != null && channel != null && channel.isOpen()) {
+            try {
+                channel.basicCancel(consumerTag);
+            } catch (IOException e) {
+                log.warn("Failed to cancel consumer " + consumerTag, e);
+            }
+        }
+        consumer = null;
+        consumerTag = null;
+        if (ownChannel != null) {
+            try {
+                if (ownChannel.isOpen()) {
+                    ownChannel.close();
+                }
+            } catch (Exception e) {
+                log.warn("Failed to close channel " + ownChannel.getChannelNumber(), e);
+            }
+            ownChannel = null;
+            channel = null;
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void testEnded() {
+        stopConsuming();
+        super.testEnded();
+    }
+
+    private void stopConsuming() {
+        flushAcksQuietly();
 
         if(purgeQueue()){
             log.info("Purging queue " + getQueue());
@@ -274,21 +563,6 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         }
     }
 
-    @Override
-    public void testEnded(String arg0) {
-
-    }
-
-    @Override
-    public void testStarted() {
-
-    }
-
-    @Override
-    public void testStarted(String arg0) {
-
-    }
-
     /*
      * Helper method
      */
@@ -299,9 +573,51 @@ public class AMQPConsumer extends AMQPSampler implements Interruptible, TestStat
         log.debug(tn + " " + tl + " " + s + " " + th);
     }
 
+    /**
+     * Reads the replies sent to this thread's channel through the direct reply-to pseudo-queue. A
+     * publisher earlier in the thread may have started consuming them already, so that the
+     * broker accepted its requests; its buffer is taken over in that case.
+     */
+    private void consumeDirectReplies() throws IOException {
+        Consumer shared = getConnectionManager().consumeDirectReplies(channel, consumer);
+        if (shared != consumer) {
+            if (!(shared instanceof BufferedConsumer)) {
+                throw new IllegalStateException("Direct replies of this thread's channel are already"
+                        + " consumed by another sampler");
+            }
+            consumer = (BufferedConsumer) shared;
+        }
+        consumer.claim();
+        consumerTag = DIRECT_REPLY_TO;
+    }
+
+    /*
+     * A multiple ack also acks the deliveries other consumers of the thread's channel buffered but
+     * didn't ack yet, their own acks then fail with an unknown delivery tag and close the channel.
+     * So a consumer holding acks back opens a channel of its own, outside the connection manager's
+     * pool. Direct replies are auto-acked and must arrive on the thread's channel.
+     */
+    @Override
+    protected Channel openChannel() throws Exception {
+        if (autoAck() || ACK_PER_MESSAGE.equals(getAckStrategy()) || isDirectReplyTo(getQueue())) {
+            return super.openChannel();
+        }
+        ownChannel = getConnectionManager().createChannel();
+        return ownChannel;
+    }
+
     protected boolean initChannel() throws Exception {
+        Channel previous = channel;
         boolean ret = super.initChannel();
-        channel.basicQos(getPrefetchCountAsInt());
+        if (channel != previous) {
+            unackedCount = 0; // delivery tags of the old channel are meaningless now
+        }
+        prefetch = getPrefetchCountAsInt();
+        if (prefetch < 1 || prefetch > getBufferSizeAsInt()) {
+            // a larger prefetch would let the broker push more than the buffer can hold
+            prefetch = getBufferSizeAsInt();
+        }
+        channel.basicQos(prefetch);
         return ret;
     }
 }
@@ -0,0 +1,148 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Message counters shared by the threads publishing or consuming through a connection or sampler.
+ *
+ * Every counter is a single atomic, so threads update them without locking and JMX clients read
+ * them while the test runs.
+ */
+public class AMQPCounters implements AMQPCountersMBean {
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicLong publishedBytes = new AtomicLong();
+    private final AtomicLong confirmed = new AtomicLong();
+    private final AtomicLong nacked = new AtomicLong();
+    private final AtomicLong confirmTimedOut = new AtomicLong();
+    private final AtomicLong lost = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong returned = new AtomicLong();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong deliveredBytes = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+    private final AtomicLong buffered = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+
+    public void recordPublished(long messages, long bytes) {
+        published.addAndGet(messages);
+        publishedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Counts a publish the broker is yet to confirm.
+     */
+    public void recordAwaitingConfirm() {
+        inFlight.incrementAndGet();
+    }
+
+    public void recordConfirmed(long acks, long nacks) {
+        confirmed.addAndGet(acks);
+        nacked.addAndGet(nacks);
+        inFlight.addAndGet(-(acks + nacks));
+    }
+
+    public void recordConfirmTimedOut(long messages) {
+        confirmTimedOut.addAndGet(messages);
+        inFlight.addAndGet(-messages);
+    }
+
+    /**
+     * Counts publishes awaiting a confirm whose channel was closed before the confirm arrived.
+     */
+    public void recordLost(long messages) {
+        lost.addAndGet(messages);
+        inFlight.addAndGet(-messages);
+    }
+
+    public void recordReturned() {
+        returned.incrementAndGet();
+    }
+
+    public void recordDelivered(long messages, long bytes) {
+        delivered.addAndGet(messages);
+        deliveredBytes.addAndGet(bytes);
+    }
+
+    public void recordAcked(long messages) {
+        acked.addAndGet(messages);
+    }
+
+    /**
+     * @param change the number of deliveries added to (positive) or taken from (negative) a
+     * consumer buffer
+     */
+    public void recordBuffered(long change) {
+        buffered.addAndGet(change);
+    }
+
+    public void recordBlocked(long nanos) {
+        blockedNanos.addAndGet(nanos);
+    }
+
+    @Override
+    public long getPublishedCount() {
+        return published.get();
+    }
+
+    @Override
+    public long getPublishedBytes() {
+        return publishedBytes.get();
+    }
+
+    @Override
+    public long getConfirmedCount() {
+        return confirmed.get();
+    }
+
+    @Override
+    public long getNackedCount() {
+        return nacked.get();
+    }
+
+    @Override
+    public long getConfirmTimedOutCount() {
+        return confirmTimedOut.get();
+    }
+
+    @Override
+    public long getLostCount() {
+        return lost.get();
+    }
+
+    @Override
+    public long getInFlightCount() {
+        return Math.max(0, inFlight.get());
+    }
+
+    @Override
+    public long getReturnedCount() {
+        return returned.get();
+    }
+
+    @Override
+    public long getDeliveredCount() {
+        return delivered.get();
+    }
+
+    @Override
+    public long getDeliveredBytes() {
+        return deliveredBytes.get();
+    }
+
+    @Override
+    public long getAckedCount() {
+        return acked.get();
+    }
+
+    @Override
+    public long getBufferedCount() {
+        return Math.max(0, buffered.get());
+    }
+
+    @Override
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+}
@@ -0,0 +1,46 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * Live message counters of a connection or a sampler, exposed over JMX.
+ */
+public interface AMQPCountersMBean {
+
+    long getPublishedCount();
+
+    long getPublishedBytes();
+
+    long getConfirmedCount();
+
+    long getNackedCount();
+
+    long getConfirmTimedOutCount();
+
+    /**
+     * @return the number of publishes in flight when their channel or connection was lost
+     */
+    long getLostCount();
+
+    /**
+     * @return the number of publishes waiting for a confirm
+     */
+    long getInFlightCount();
+
+    long getReturnedCount();
+
+    long getDeliveredCount();
+
+    long getDeliveredBytes();
+
+    long getAckedCount();
+
+    /**
+     * @return the number of deliveries waiting in consumer buffers
+     */
+    long getBufferedCount();
+
+    /**
+     * @return how long publishing was held back: by the broker blocking a connection, or by a
+     * full confirm window for a sampler
+     */
+    long getBlockedMillis();
+}
@@ -1,7 +1,10 @@
 package com.zeroclue.jmeter.protocol.amqp;
 
 import com.rabbitmq.client.AMQP;
+import java.io.IOException;
+import java.nio.charset.Charset;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 
 import com.rabbitmq.client.MessageProperties;
 import org.apache.jmeter.config.Arguments;
@@ -9,10 +12,15 @@ import org.apache.jmeter.samplers.Entry;
 import org.apache.jmeter.samplers.Interruptible;
 import org.apache.jmeter.samplers.SampleResult;
 import org.apache.jmeter.testelement.property.TestElementProperty;
+import org.apache.jmeter.threads.JMeterVariables;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
+import org.HdrHistogram.SingleWriterRecorder;
 
 import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.ReturnListener;
+import com.rabbitmq.client.ShutdownSignalException;
 
 /**
  * JMeter creates an instance of a sampler class for every occurrence of the
@@ -45,8 +53,108 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
     public static boolean DEFAULT_USE_TX = false;
     private final static String USE_TX = "AMQPConsumer.UseTx";
 
+    public static boolean DEFAULT_MANDATORY = false;
+    private final static String MANDATORY = "AMQPPublisher.Mandatory";
+
+    public static boolean DEFAULT_USE_CONFIRMS = false;
+    private final static String USE_CONFIRMS = "AMQPPublisher.UseConfirms";
+
+    public static final int DEFAULT_CONFIRM_WINDOW = 1000;
+    public static final String DEFAULT_CONFIRM_WINDOW_STRING = Integer.toString(DEFAULT_CONFIRM_WINDOW);
+    private final static String CONFIRM_WINDOW = "AMQPPublisher.ConfirmWindow";
+
+    public static final int DEFAULT_CONFIRM_TIMEOUT = 5000;
+    public static final String DEFAULT_CONFIRM_TIMEOUT_STRING = Integer.toString(DEFAULT_CONFIRM_TIMEOUT);
+    private final static String CONFIRM_TIMEOUT = "AMQPPublisher.ConfirmTimeout";
+
+    public static boolean DEFAULT_CONFIRM_BATCH = false;
+    private final static String CONFIRM_BATCH = "AMQPPublisher.ConfirmBatch";
+
+    public static boolean DEFAULT_STAMP_SEND_TIME = false;
+    private final static String STAMP_SEND_TIME = "AMQPPublisher.StampSendTime";
+
+    public static final String DEFAULT_PUBLISH_RATE_STRING = "0";
+    private final static String PUBLISH_RATE = "AMQPPublisher.PublishRate";
+
+    public static final String SOURCE_STATIC = "Static";
+    public static final String SOURCE_FILE = "File";
+    public static final String DEFAULT_MESSAGE_SOURCE = SOURCE_STATIC;
+    private final static String MESSAGE_SOURCE = "AMQPPublisher.MessageSource";
+
+    private final static String MESSAGE_FILE = "AMQPPublisher.MessageFile";
+
+    public static final String DEFAULT_MESSAGE_FILE_FORMAT = MessageFile.NEWLINE;
+    private final static String MESSAGE_FILE_FORMAT = "AMQPPublisher.MessageFileFormat";
+
+    public static final String CURSOR_SHARED = "shared cursor";
+    public static final String CURSOR_PARTITIONED = "per-thread partition";
+    public static final String DEFAULT_MESSAGE_FILE_CURSOR = CURSOR_SHARED;
+    private final static String MESSAGE_FILE_CURSOR = "AMQPPublisher.MessageFileCursor";
+
+    public static boolean DEFAULT_MESSAGE_TEMPLATE = false;
+    private final static String MESSAGE_TEMPLATE = "AMQPPublisher.MessageTemplate";
+
+    /** Publish the message content rather than generated bodies. */
+    public static final String PAYLOAD_MESSAGE = "message content";
+    public static final String DEFAULT_PAYLOAD_SIZES = PAYLOAD_MESSAGE;
+    private final static String PAYLOAD_SIZES = "AMQPPublisher.PayloadSizes";
+
+    public static final int DEFAULT_PAYLOAD_SIZE = 1024;
+    public static final String DEFAULT_PAYLOAD_SIZE_STRING = Integer.toString(DEFAULT_PAYLOAD_SIZE);
+    private final static String PAYLOAD_SIZE = "AMQPPublisher.PayloadSize";
+
+    public static final int DEFAULT_PAYLOAD_MIN_SIZE = 0;
+    public static final String DEFAULT_PAYLOAD_MIN_SIZE_STRING = Integer.toString(DEFAULT_PAYLOAD_MIN_SIZE);
+    private final static String PAYLOAD_MIN_SIZE = "AMQPPublisher.PayloadMinSize";
+
+    public static final int DEFAULT_PAYLOAD_MAX_SIZE = 65536;
+    public static final String DEFAULT_PAYLOAD_MAX_SIZE_STRING = Integer.toString(DEFAULT_PAYLOAD_MAX_SIZE);
+    private final static String PAYLOAD_MAX_SIZE = "AMQPPublisher.PayloadMaxSize";
+
+    public static final int DEFAULT_PAYLOAD_STD_DEV = 256;
+    public static final String DEFAULT_PAYLOAD_STD_DEV_STRING = Integer.toString(DEFAULT_PAYLOAD_STD_DEV);
+    private final static String PAYLOAD_STD_DEV = "AMQPPublisher.PayloadStdDev";
+
+    private final static String PAYLOAD_SIZE_FILE = "AMQPPublisher.PayloadSizeFile";
+
+    public static final int DEFAULT_PAYLOAD_POOL_SIZE = 1024;
+    public static final String DEFAULT_PAYLOAD_POOL_SIZE_STRING = Integer.toString(DEFAULT_PAYLOAD_POOL_SIZE);
+    private final static String PAYLOAD_POOL_SIZE = "AMQPPublisher.PayloadPoolSize";
+
+    public static boolean DEFAULT_PAYLOAD_COMPRESSIBLE = false;
+    private final static String PAYLOAD_COMPRESSIBLE = "AMQPPublisher.PayloadCompressible";
+
+    public static final String ROUTING_MESSAGE = "message routing key";
+    public static final String DEFAULT_ROUTING_KEY_DISTRIBUTION = ROUTING_MESSAGE;
+    private final static String ROUTING_KEY_DISTRIBUTION = "AMQPPublisher.RoutingKeyDistribution";
+
+    private final static String ROUTING_KEY_SPACE = "AMQPPublisher.RoutingKeySpace";
+
+    public static final int DEFAULT_ROUTING_KEY_COUNT = 100;
+    public static final String DEFAULT_ROUTING_KEY_COUNT_STRING = Integer.toString(DEFAULT_ROUTING_KEY_COUNT);
+    private final static String ROUTING_KEY_COUNT = "AMQPPublisher.RoutingKeyCount";
+
+    public static final double DEFAULT_ROUTING_KEY_SKEW = 1.0;
+    public static final String DEFAULT_ROUTING_KEY_SKEW_STRING = Double.toString(DEFAULT_ROUTING_KEY_SKEW);
+    private final static String ROUTING_KEY_SKEW = "AMQPPublisher.RoutingKeySkew";
+
+    private final static String ROUTING_KEY_FIELD = "AMQPPublisher.RoutingKeyField";
+
     private transient Channel channel;
+    private transient ConfirmTracker confirmTracker;
+    private transient Channel directReplyChannel;
+    private transient BufferedConsumer directReplies;
+    private transient Channel returnChannel;
+    private transient ReturnListener returnListener;
     private transient byte[] messageBytes;
+    private transient PayloadCorpus payloadCorpus;
+    private transient RoutingKeys routingKeys;
+    private transient MessageFile.Reader messageFileReader;
+    private transient MessageTemplate messageTemplate;
+    private transient PublishPlan publishPlan;
+    private transient boolean publishPlanVaries;
+    private transient int payloadIndex;
+    private transient int routingKeyIndex;
 
     public AMQPPublisher() {
         super();
@@ -62,15 +170,30 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
         result.setSuccessful(false);
         result.setResponseCode("500");
 
+        MessageFile.Reader fileReader;
+        PayloadCorpus corpus;
+        MessageTemplate template;
+        RoutingKeys keys;
         try {
             initChannel();
+            keys = getRoutingKeys();
+            fileReader = getMessageFileReader();
+            corpus = fileReader == null ? getPayloadCorpus() : null;
+            template = fileReader == null && corpus == null ? getCompiledTemplate() : null;
         } catch (Exception ex) {
             log.error("Failed to initialize channel : ", ex);
             result.setResponseMessage(ex.toString());
             return result;
         }
 
-        String data = getMessage(); // Sampler data
+        String data; // Sampler data
+        if (fileReader != null) {
+            data = "messages of " + getMessageFile();
+        } else if (corpus != null) {
+            data = corpus.getCount() + " bodies, " + corpus;
+        } else {
+            data = getMessage();
+        }
 
         result.setSampleLabel(getTitle());
         /*
@@ -79,19 +202,96 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
 
         // aggregate samples.
         int loop = getIterationsAsInt();
-        result.sampleStart(); // Start timing
+        ConfirmTracker confirms = getUseConfirms() ? confirmTracker : null;
+        int confirmTimeout = getConfirmTimeoutAsInt();
+        boolean batch = confirms != null && getConfirmBatch();
+        boolean stampSendTime = getStampSendTime();
+        boolean mandatory = getMandatory();
+        SingleWriterRecorder publishLatencies = getLatencyRecorder(LatencyHistograms.PUBLISH);
+        SampleResult publishResult = null;
+        double rate = getPublishRateAsDouble();
+        ArrivalSchedule schedule = rate > 0 ? ArrivalSchedule.forSampler(getInstanceKey(), rate) : null;
+        long intendedStart = System.nanoTime();
+        if (schedule == null) {
+            result.sampleStart(); // Start timing
+        }
         try {
-            AMQP.BasicProperties messageProperties = getProperties();
-            messageProperties.setHeaders(prepareHeaders());
-            byte[] messageBytes = getMessageBytes();
+            PublishPlan plan = getPublishPlan();
+            String exchange = plan.getExchange();
+            String routingKey = plan.getRoutingKey();
+            AMQP.BasicProperties messageProperties = plan.getProperties();
+            Map<String, Object> headers = plan.getHeaders();
+            byte[] messageBytes = fileReader == null && corpus == null && template == null ? getMessageBytes() : null;
+            byte[] body = messageBytes;
+            JMeterVariables vars = template != null ? getThreadContext().getVariables() : null;
+            long publishedBytes = 0;
+            long blockedNanos = 0;
+
+            if (confirms != null) {
+                confirms.begin();
+            }
+            if (batch) {
+                publishResult = startSubResult(" publish");
+            }
 
+            int published = 0;
             for (int idx = 0; idx < loop; idx++) {
                 // try to force jms semantics.
                 // but this does not work since RabbitMQ does not sync to disk if consumers are connected as
                 // seen by iostat -cd 1. TPS value remains at 0.
-                log.info("Publishing message to: " + getExchange());
-                channel.basicPublish(getExchange(), getMessageRoutingKey(), messageProperties, messageBytes);
-
+                long intended = 0;
+                if (schedule != null) {
+                    // open model: latencies are measured from when the message should have been sent
+                    intended = schedule.claim();
+                    ArrivalSchedule.awaitNanos(intended);
+                    if (idx == 0) {
+                        intendedStart = intended;
+                    }
+                }
+                if (!batch && confirms != null) {
+                    long waitStart = System.nanoTime();
+                    boolean open = confirms.awaitWindow(remainingMillis(confirmTimeout, blockedNanos));
+                    blockedNanos += System.nanoTime() - waitStart;
+                    if (!open) {
+                        break; // window never opened up, the rest are reported as not sent
+                    }
+                }
+                long publishStart = schedule != null ? intended : System.nanoTime();
+                if (confirms != null) {
+                    confirms.register(publishStart);
+                }
+                if (stampSendTime) {
+                    // basicPublish encodes the headers before returning, so the map can be reused
+                    headers.put(SendTimestamp.HEADER, SendTimestamp.toMicros(publishStart));
+                }
+                if (template != null) {
+                    body = template.render(vars);
+                } else if (fileReader != null) {
+                    body = fileReader.next();
+                } else if (corpus != null) {
+                    body = corpus.get(payloadIndex);
+                    payloadIndex = (payloadIndex + 1) & Integer.MAX_VALUE;
+                }
+                String key = routingKey;
+                if (keys != null) {
+                    key = keys.get(routingKeyIndex, body);
+                    routingKeyIndex = (routingKeyIndex + 1) & Integer.MAX_VALUE;
+                }
+                try {
+                    channel.basicPublish(exchange, key, mandatory, messageProperties, body);
+                } catch (ShutdownSignalException ex) {
+                    // unconfirmed messages and an open transaction were lost with the channel,
+                    // so only plain publishes go on once the connection is recovered
+                    if (confirms != null || getUseTx() || !recoverable(ex)) {
+                        throw ex;
+                    }
+                    log.warn("Publisher lost its connection, publishing again once it is recovered: " + ex.getMessage());
+                    reopenChannel(ex);
+                    channel.basicPublish(exchange, key, mandatory, messageProperties, body);
+                }
+                publishLatencies.recordValue((System.nanoTime() - publishStart) / 1000);
+                published++;
+                publishedBytes += body.length;
             }
 
             // commit the sample.
@@ -99,23 +299,80 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
                 channel.txCommit();
             }
 
+            // a sample with confirms ends when the broker has confirmed its last message
+            if (batch) {
+                publishResult.sampleEnd();
+                publishResult.setResponseCodeOK();
+                publishResult.setResponseMessage("batch size: " + published);
+                publishResult.setSuccessful(true);
+
+                SampleResult confirmResult = startSubResult(" confirm");
+                confirms.awaitConfirms(confirmTimeout);
+                confirmResult.sampleEnd();
+                confirmResult.setResponseMessage(confirms.getAckedCount() + " of " + published + " messages confirmed");
+                if (confirms.getAckedCount() == published) {
+                    confirmResult.setResponseCodeOK();
+                    confirmResult.setSuccessful(true);
+                }
+
+                result.addRawSubResult(publishResult);
+                result.addRawSubResult(confirmResult);
+            } else if (confirms != null) {
+                confirms.awaitConfirms(remainingMillis(confirmTimeout, blockedNanos));
+            }
+
+            for (AMQPCounters counters : getCounters()) {
+                counters.recordPublished(published, publishedBytes);
+            }
+            if (getSamplerCounters() != null) {
+                getSamplerCounters().recordBlocked(blockedNanos); // the connection counts broker blocks
+            }
+
             /*
              * Set up the sample result details
              */
             result.setSamplerData(data);
-            result.setResponseData(new String(messageBytes), null);
-            result.setDataType(SampleResult.TEXT);
+            if (messageBytes != null) {
+                result.setResponseData(new String(messageBytes), null);
+                result.setDataType(SampleResult.TEXT);
+            } else if (template != null && body != null) {
+                result.setResponseData(new String(body), null); // the last message rendered
+                result.setDataType(SampleResult.TEXT);
+            } else if (fileReader != null && body != null) {
+                result.setResponseData(body.clone()); // the reader reuses the array
+                result.setDataType(MessageFile.NEWLINE.equals(getMessageFileFormat()) ? SampleResult.TEXT : SampleResult.BINARY);
+            } else if (body != null) {
+                result.setResponseData(body); // the last body sent, not copied
+                result.setDataType(corpus.isCompressible() ? SampleResult.TEXT : SampleResult.BINARY);
+            }
 
-            result.setResponseCodeOK();
-            result.setResponseMessage("OK");
-            result.setSuccessful(true);
+            if (confirms != null && confirms.getAckedCount() < loop) {
+                result.setResponseCode("502");
+                result.setResponseMessage(confirms.getAckedCount() + " of " + loop + " messages confirmed, "
+                        + confirms.getNackedCount() + " nacked, "
+                        + confirms.getLostCount() + " lost with the channel, "
+                        + (published - confirms.getAckedCount() - confirms.getNackedCount() - confirms.getLostCount())
+                        + " timed out, "
+                        + (loop - published) + " not sent"); // the window never opened for them
+            } else {
+                result.setResponseCodeOK();
+                result.setResponseMessage("OK");
+                result.setSuccessful(true);
+            }
         } catch (Exception ex) {
             log.debug(ex.getMessage(), ex);
             result.setResponseCode("000");
             result.setResponseMessage(ex.toString());
         }
         finally {
-            result.sampleEnd(); // End timimg
+            if (schedule == null) {
+                result.sampleEnd(); // End timimg
+            } else {
+                // the sample started when its first message should have been sent
+                long end = System.nanoTime();
+                result.setStampAndTime(SendTimestamp.toMicros(intendedStart) / 1000,
+                        TimeUnit.NANOSECONDS.toMillis(end - intendedStart));
+            }
         }
 
         return result;
@@ -212,6 +469,445 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
        setProperty(USE_TX, tx);
     }
 
+    public Boolean getUseConfirms() {
+        return getPropertyAsBoolean(USE_CONFIRMS, DEFAULT_USE_CONFIRMS);
+    }
+
+    public void setUseConfirms(Boolean confirms) {
+       setProperty(USE_CONFIRMS, confirms);
+    }
+
+    /**
+     * @return whether to publish the whole batch before waiting for its confirms, instead of
+     * keeping a window of unconfirmed messages
+     */
+    public Boolean getConfirmBatch() {
+        return getPropertyAsBoolean(CONFIRM_BATCH, DEFAULT_CONFIRM_BATCH);
+    }
+
+    public void setConfirmBatch(Boolean batch) {
+       setProperty(CONFIRM_BATCH, batch);
+    }
+
+    /**
+     * @return whether to stamp each message with its send time, for consumers to measure
+     * end-to-end latency
+     */
+    public Boolean getStampSendTime() {
+        return getPropertyAsBoolean(STAMP_SEND_TIME, DEFAULT_STAMP_SEND_TIME);
+    }
+
+    public void setStampSendTime(Boolean stamp) {
+       setProperty(STAMP_SEND_TIME, stamp);
+    }
+
+    /**
+     * @return the target messages per second shared by all threads of this publisher,
+     * 0 = as fast as the threads can publish
+     */
+    public String getPublishRate() {
+        return getPropertyAsString(PUBLISH_RATE, DEFAULT_PUBLISH_RATE_STRING);
+    }
+
+    public void setPublishRate(String s) {
+        setProperty(PUBLISH_RATE, s);
+    }
+
+    protected double getPublishRateAsDouble() {
+        return getPropertyAsDouble(PUBLISH_RATE);
+    }
+
+    /**
+     * @return {@link #SOURCE_FILE} to replay the messages of a file, {@link #SOURCE_STATIC} to
+     * publish the message content or generated bodies
+     */
+    public String getMessageSource() {
+        return getPropertyAsString(MESSAGE_SOURCE, DEFAULT_MESSAGE_SOURCE);
+    }
+
+    public void setMessageSource(String s) {
+        setProperty(MESSAGE_SOURCE, s);
+    }
+
+    public String getMessageFile() {
+        return getPropertyAsString(MESSAGE_FILE);
+    }
+
+    public void setMessageFile(String s) {
+        setProperty(MESSAGE_FILE, s);
+    }
+
+    /**
+     * @return how the records of the message file are delimited, see {@link MessageFile}
+     */
+    public String getMessageFileFormat() {
+        return getPropertyAsString(MESSAGE_FILE_FORMAT, DEFAULT_MESSAGE_FILE_FORMAT);
+    }
+
+    public void setMessageFileFormat(String s) {
+        setProperty(MESSAGE_FILE_FORMAT, s);
+    }
+
+    /**
+     * @return whether threads share one cursor over the message file or replay a part each
+     */
+    public String getMessageFileCursor() {
+        return getPropertyAsString(MESSAGE_FILE_CURSOR, DEFAULT_MESSAGE_FILE_CURSOR);
+    }
+
+    public void setMessageFileCursor(String s) {
+        setProperty(MESSAGE_FILE_CURSOR, s);
+    }
+
+    /**
+     * @return this thread's reader of the message file, null unless messages come from a file
+     */
+    private MessageFile.Reader getMessageFileReader() throws IOException {
+        if (!SOURCE_FILE.equals(getMessageSource()) || messageBytes != null) {
+            return null;
+        }
+        if (messageFileReader == null) {
+            MessageFile messageFile = MessageFile.open(getMessageFile(), getMessageFileFormat());
+            if (CURSOR_PARTITIONED.equals(getMessageFileCursor())) {
+                messageFileReader = messageFile.partitionReader(getThreadContext().getThreadNum(),
+                        getThreadContext().getThreadGroup().getNumThreads());
+            } else {
+                messageFileReader = messageFile.sharedReader();
+            }
+        }
+        return messageFileReader;
+    }
+
+    /**
+     * @return whether the message content is a {@link MessageTemplate}, rendered for every message
+     */
+    public Boolean getMessageTemplate() {
+        return getPropertyAsBoolean(MESSAGE_TEMPLATE, DEFAULT_MESSAGE_TEMPLATE);
+    }
+
+    public void setMessageTemplate(Boolean template) {
+        setProperty(MESSAGE_TEMPLATE, template);
+    }
+
+    /**
+     * @return the message content compiled into a template, null unless it is one
+     */
+    private MessageTemplate getCompiledTemplate() {
+        if (!getMessageTemplate() || messageBytes != null) {
+            return null;
+        }
+        // JMeter functions in the message field may change it from one sample to the next
+        String text = getMessage();
+        if (messageTemplate == null || !messageTemplate.getText().equals(text)) {
+            messageTemplate = new MessageTemplate(text, Charset.defaultCharset(),
+                    MessageTemplate.sequence(getInstanceKey()), getThreadContext().getThreadNum());
+        }
+        return messageTemplate;
+    }
+
+    /**
+     * @return the size distribution of generated bodies, or {@link #PAYLOAD_MESSAGE} to publish
+     * the message content
+     */
+    public String getPayloadSizes() {
+        return getPropertyAsString(PAYLOAD_SIZES, DEFAULT_PAYLOAD_SIZES);
+    }
+
+    public void setPayloadSizes(String s) {
+        setProperty(PAYLOAD_SIZES, s);
+    }
+
+    /**
+     * @return the size of every body with fixed sizes, the mean size with normally distributed ones
+     */
+    public String getPayloadSize() {
+        return getPropertyAsString(PAYLOAD_SIZE, DEFAULT_PAYLOAD_SIZE_STRING);
+    }
+
+    public void setPayloadSize(String s) {
+        setProperty(PAYLOAD_SIZE, s);
+    }
+
+    protected int getPayloadSizeAsInt() {
+        return getPropertyAsInt(PAYLOAD_SIZE, DEFAULT_PAYLOAD_SIZE);
+    }
+
+    /**
+     * @return the smallest body with uniformly or normally distributed sizes
+     */
+    public String getPayloadMinSize() {
+        return getPropertyAsString(PAYLOAD_MIN_SIZE, DEFAULT_PAYLOAD_MIN_SIZE_STRING);
+    }
+
+    public void setPayloadMinSize(String s) {
+        setProperty(PAYLOAD_MIN_SIZE, s);
+    }
+
+    protected int getPayloadMinSizeAsInt() {
+        return Math.max(0, getPropertyAsInt(PAYLOAD_MIN_SIZE, DEFAULT_PAYLOAD_MIN_SIZE));
+    }
+
+    /**
+     * @return the largest body with uniformly or normally distributed sizes
+     */
+    public String getPayloadMaxSize() {
+        return getPropertyAsString(PAYLOAD_MAX_SIZE, DEFAULT_PAYLOAD_MAX_SIZE_STRING);
+    }
+
+    public void setPayloadMaxSize(String s) {
+        setProperty(PAYLOAD_MAX_SIZE, s);
+    }
+
+    protected int getPayloadMaxSizeAsInt() {
+        return getPropertyAsInt(PAYLOAD_MAX_SIZE, DEFAULT_PAYLOAD_MAX_SIZE);
+    }
+
+    public String getPayloadStdDev() {
+        return getPropertyAsString(PAYLOAD_STD_DEV, DEFAULT_PAYLOAD_STD_DEV_STRING);
+    }
+
+    public void setPayloadStdDev(String s) {
+        setProperty(PAYLOAD_STD_DEV, s);
+    }
+
+    protected int getPayloadStdDevAsInt() {
+        return getPropertyAsInt(PAYLOAD_STD_DEV, DEFAULT_PAYLOAD_STD_DEV);
+    }
+
+    /**
+     * @return the file of <code>size,weight</code> lines sizes are drawn from with a histogram
+     */
+    public String getPayloadSizeFile() {
+        return getPropertyAsString(PAYLOAD_SIZE_FILE);
+    }
+
+    public void setPayloadSizeFile(String s) {
+        setProperty(PAYLOAD_SIZE_FILE, s);
+    }
+
+    /**
+     * @return the number of distinct bodies generated when the test starts
+     */
+    public String getPayloadPoolSize() {
+        return getPropertyAsString(PAYLOAD_POOL_SIZE, DEFAULT_PAYLOAD_POOL_SIZE_STRING);
+    }
+
+    public void setPayloadPoolSize(String s) {
+        setProperty(PAYLOAD_POOL_SIZE, s);
+    }
+
+    protected int getPayloadPoolSizeAsInt() {
+        if (getPropertyAsInt(PAYLOAD_POOL_SIZE) < 1) {
+            return DEFAULT_PAYLOAD_POOL_SIZE;
+        }
+        return getPropertyAsInt(PAYLOAD_POOL_SIZE);
+    }
+
+    /**
+     * @return whether generated bodies are compressible text rather than random bytes
+     */
+    public Boolean getPayloadCompressible() {
+        return getPropertyAsBoolean(PAYLOAD_COMPRESSIBLE, DEFAULT_PAYLOAD_COMPRESSIBLE);
+    }
+
+    public void setPayloadCompressible(Boolean compressible) {
+        setProperty(PAYLOAD_COMPRESSIBLE, compressible);
+    }
+
+    /**
+     * @return the bodies shared by all threads of this publisher, null to publish the message
+     */
+    private PayloadCorpus getPayloadCorpus() throws IOException {
+        if (PAYLOAD_MESSAGE.equals(getPayloadSizes()) || messageBytes != null) {
+            return null;
+        }
+        if (payloadCorpus == null) {
+            payloadCorpus = PayloadCorpus.forSampler(getInstanceKey(), getPayloadSizes(), getPayloadSizeAsInt(),
+                    getPayloadMinSizeAsInt(), getPayloadMaxSizeAsInt(), getPayloadStdDevAsInt(),
+                    getPayloadSizeFile(), getPayloadPoolSizeAsInt(), getPayloadCompressible());
+            // threads start at different bodies of the pool
+            payloadIndex = getThreadContext().getThreadNum() & Integer.MAX_VALUE;
+        }
+        return payloadCorpus;
+    }
+
+    /**
+     * @return how the routing key of each message is picked from the key space, or
+     * {@link #ROUTING_MESSAGE} to publish every message with the message routing key
+     */
+    public String getRoutingKeyDistribution() {
+        return getPropertyAsString(ROUTING_KEY_DISTRIBUTION, DEFAULT_ROUTING_KEY_DISTRIBUTION);
+    }
+
+    public void setRoutingKeyDistribution(String s) {
+        setProperty(ROUTING_KEY_DISTRIBUTION, s);
+    }
+
+    /**
+     * @return a pattern with <code>${n}</code>, topic segments such as <code>eu.{16}.{a|b}</code>
+     * or a comma separated list of keys, see {@link RoutingKeys}
+     */
+    public String getRoutingKeySpace() {
+        return getPropertyAsString(ROUTING_KEY_SPACE);
+    }
+
+    public void setRoutingKeySpace(String s) {
+        setProperty(ROUTING_KEY_SPACE, s);
+    }
+
+    /**
+     * @return the number of keys of a <code>${n}</code> pattern
+     */
+    public String getRoutingKeyCount() {
+        return getPropertyAsString(ROUTING_KEY_COUNT, DEFAULT_ROUTING_KEY_COUNT_STRING);
+    }
+
+    public void setRoutingKeyCount(String s) {
+        setProperty(ROUTING_KEY_COUNT, s);
+    }
+
+    protected int getRoutingKeyCountAsInt() {
+        if (getPropertyAsInt(ROUTING_KEY_COUNT) < 1) {
+            return DEFAULT_ROUTING_KEY_COUNT;
+        }
+        return getPropertyAsInt(ROUTING_KEY_COUNT);
+    }
+
+    /**
+     * @return the exponent of the Zipf distribution, the higher the more messages go to the first keys
+     */
+    public String getRoutingKeySkew() {
+        return getPropertyAsString(ROUTING_KEY_SKEW, DEFAULT_ROUTING_KEY_SKEW_STRING);
+    }
+
+    public void setRoutingKeySkew(String s) {
+        setProperty(ROUTING_KEY_SKEW, s);
+    }
+
+    protected double getRoutingKeySkewAsDouble() {
+        if (getPropertyAsDouble(ROUTING_KEY_SKEW) <= 0) {
+            return DEFAULT_ROUTING_KEY_SKEW;
+        }
+        return getPropertyAsDouble(ROUTING_KEY_SKEW);
+    }
+
+    /**
+     * @return the JSON field of the body whose value is hashed to a key, the whole body if blank
+     */
+    public String getRoutingKeyField() {
+        return getPropertyAsString(ROUTING_KEY_FIELD);
+    }
+
+    public void setRoutingKeyField(String s) {
+        setProperty(ROUTING_KEY_FIELD, s);
+    }
+
+    /**
+     * @return the keys shared by all threads of this publisher, null to publish with the message
+     * routing key
+     */
+    private RoutingKeys getRoutingKeys() {
+        if (ROUTING_MESSAGE.equals(getRoutingKeyDistribution())) {
+            return null;
+        }
+        if (routingKeys == null) {
+            routingKeys = RoutingKeys.forSampler(getInstanceKey(), getRoutingKeyDistribution(), getRoutingKeySpace(),
+                    getRoutingKeyCountAsInt(), getRoutingKeySkewAsDouble(), getRoutingKeyField());
+            // threads start round-robin at different keys
+            routingKeyIndex = getThreadContext().getThreadNum() & Integer.MAX_VALUE;
+        }
+        return routingKeys;
+    }
+
+    /**
+     * @return whether the broker should return messages it can't route to any queue
+     */
+    public Boolean getMandatory() {
+        return getPropertyAsBoolean(MANDATORY, DEFAULT_MANDATORY);
+    }
+
+    public void setMandatory(Boolean mandatory) {
+        setProperty(MANDATORY, mandatory);
+    }
+
+    /**
+     * @return the maximum number of unconfirmed messages, 0 = unlimited
+     */
+    public String getConfirmWindow() {
+        return getPropertyAsString(CONFIRM_WINDOW, DEFAULT_CONFIRM_WINDOW_STRING);
+    }
+
+    public void setConfirmWindow(String s) {
+        setProperty(CONFIRM_WINDOW, s);
+    }
+
+    protected int getConfirmWindowAsInt() {
+        return getPropertyAsInt(CONFIRM_WINDOW, DEFAULT_CONFIRM_WINDOW);
+    }
+
+    public String getConfirmTimeout() {
+        return getPropertyAsString(CONFIRM_TIMEOUT, DEFAULT_CONFIRM_TIMEOUT_STRING);
+    }
+
+    public void setConfirmTimeout(String s) {
+        setProperty(CONFIRM_TIMEOUT, s);
+    }
+
+    private static long remainingMillis(int confirmTimeout, long waitedNanos) {
+        return Math.max(0, confirmTimeout - TimeUnit.NANOSECONDS.toMillis(waitedNanos));
+    }
+
+    /**
+     * @return the most a sample waits for confirms in total, for room in the window and for the
+     * last messages
+     */
+    protected int getConfirmTimeoutAsInt() {
+        if (getPropertyAsInt(CONFIRM_TIMEOUT) < 1) {
+            return DEFAULT_CONFIRM_TIMEOUT;
+        }
+        return getPropertyAsInt(CONFIRM_TIMEOUT);
+    }
+
+    /**
+     * @return the confirm tracker of the current channel, null unless publisher confirms are used
+     */
+    public ConfirmTracker getConfirmTracker() {
+        return confirmTracker;
+    }
+
+    @Override
+    public void testStarted() {
+        super.testStarted();
+        ArrivalSchedule.reset();
+        PayloadCorpus.reset();
+        RoutingKeys.reset();
+        MessageFile.reset();
+        MessageTemplate.reset();
+    }
+
+    @Override
+    protected void cleanup() {
+        // the channel goes back to the connection manager's pool, so stop consuming on it
+        if (directReplyChannel != null && directReplyChannel == channel) {
+            getConnectionManager().cancelDirectReplies(channel);
+        }
+        if (directReplies != null && directReplies.getDrainedCount() > 0) {
+            log.info("Discarded " + directReplies.getDrainedCount() + " direct replies no consumer read");
+        }
+        directReplyChannel = null;
+        directReplies = null;
+        // or returns of the next thread leasing it would count as this sampler's
+        if (returnChannel != null && returnChannel == channel) {
+            channel.removeReturnListener(returnListener);
+        }
+        returnChannel = null;
+        returnListener = null;
+        if (confirmTracker != null) {
+            confirmTracker.detach();
+            confirmTracker = null;
+        }
+    }
+
     @Override
     public boolean interrupt() {
         cleanup();
@@ -245,13 +941,82 @@ public class AMQPPublisher extends AMQPSampler implements Interruptible {
     }
 
     protected boolean initChannel() throws Exception {
+        if (getUseTx() && getUseConfirms()) {
+            throw new IllegalStateException("A channel can't use both transactions and publisher confirms");
+        }
         boolean ret = super.initChannel();
         if (getUseTx()) {
             channel.txSelect();
+            // a channel can't leave transaction or confirm mode, so it isn't pooled for a thread
+            // wanting the other one
+            getConnectionManager().getChannelPool().retire(channel);
+        }
+        if (getUseConfirms() && (confirmTracker == null || confirmTracker.getChannel() != channel)) {
+            if (confirmTracker != null) {
+                confirmTracker.detach();
+            }
+            confirmTracker = new ConfirmTracker(channel, getConfirmWindowAsInt(),
+                    getLatencyRecorder(LatencyHistograms.CONFIRM), getCounters());
+            confirmTracker.attach();
+            getConnectionManager().getChannelPool().retire(channel);
+        }
+        if (getMandatory() && returnChannel != channel) {
+            final AMQPCounters[] counters = getCounters();
+            returnListener = new ReturnListener() {
+                @Override
+                public void handleReturn(int replyCode, String replyText, String exchange, String routingKey,
+                        AMQP.BasicProperties properties, byte[] body) {
+                    for (AMQPCounters c : counters) {
+                        c.recordReturned();
+                    }
+                }
+            };
+            channel.addReturnListener(returnListener);
+            returnChannel = channel;
+        }
+        if (isDirectReplyTo(getReplyToQueue()) && directReplyChannel != channel) {
+            // the broker refuses direct reply-to requests from a channel not consuming the
+            // replies, so start before the first publish; the replies are discarded unless an
+            // AMQP Consumer of the pseudo-queue later in the thread claims this buffer
+            BufferedConsumer replies = new BufferedConsumer(channel, AMQPConsumer.DEFAULT_BUFFER_SIZE, true, getCounters());
+            replies.drain();
+            Consumer shared = getConnectionManager().consumeDirectReplies(channel, replies);
+            directReplies = shared instanceof BufferedConsumer ? (BufferedConsumer) shared : null;
+            directReplyChannel = channel;
         }
         return ret;
     }
 
+    /**
+     * @return the exchange, routing key and properties to publish with, evaluated again for every
+     * sample only if one of their fields holds a JMeter function or variable
+     */
+    private PublishPlan getPublishPlan() {
+        if (publishPlan != null && !publishPlanVaries) {
+            return publishPlan;
+        }
+        boolean first = publishPlan == null;
+        AMQP.BasicProperties properties = getProperties();
+        Map<String, Object> headers = prepareHeaders();
+        properties.setHeaders(headers);
+        publishPlan = new PublishPlan(getExchange(), getMessageRoutingKey(), properties, headers);
+        if (first) {
+            publishPlanVaries = hasFunctions(EXCHANGE, MESSAGE_ROUTING_KEY, MESSAGE_TYPE, REPLY_TO_QUEUE,
+                    CORRELATION_ID, USER_ID, PERSISTENT, HEADERS);
+            log.info("Publishing to exchange " + publishPlan.getExchange() + " with routing key "
+                    + publishPlan.getRoutingKey() + (publishPlanVaries ? ", evaluated for every sample" : ""));
+        }
+        return publishPlan;
+    }
+
+    private SampleResult startSubResult(String suffix) {
+        SampleResult subResult = new SampleResult();
+        subResult.setSampleLabel(getTitle() + suffix);
+        subResult.setSuccessful(false);
+        subResult.sampleStart();
+        return subResult;
+    }
+
     private Map<String, Object> prepareHeaders() {
         Map<String, Object> result = new HashMap<String, Object>();
         Map<String, String> source = getHeaders().getArgumentsAsMap();
@@ -0,0 +1,233 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.samplers.Entry;
+import org.apache.jmeter.samplers.Interruptible;
+import org.apache.jmeter.samplers.SampleResult;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.HdrHistogram.SingleWriterRecorder;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+
+/**
+ * Sends RPC requests and waits for their replies, keeping several requests in flight per thread.
+ *
+ * Each sample sends "iterations" requests to the configured exchange and routing key, at most
+ * "max in flight" of them unanswered at once. Replies come back on a reply queue shared by all
+ * threads, or with direct reply-to straight to the thread's own channel without any queue, and
+ * are matched to their request by correlation id.
+ */
+public class AMQPRPCSampler extends AMQPSampler implements Interruptible {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final int DEFAULT_MAX_IN_FLIGHT = 100;
+    public static final String DEFAULT_MAX_IN_FLIGHT_STRING = Integer.toString(DEFAULT_MAX_IN_FLIGHT);
+
+    public static final boolean DEFAULT_DIRECT_REPLY_TO = false;
+
+    public static final int DEFAULT_REPLY_TIMEOUT = 5000;
+    public static final String DEFAULT_REPLY_TIMEOUT_STRING = Integer.toString(DEFAULT_REPLY_TIMEOUT);
+
+    //++ These are JMX names, and must not be changed
+    private final static String MESSAGE = "AMQPRPCSampler.Message";
+    private final static String MAX_IN_FLIGHT = "AMQPRPCSampler.MaxInFlight";
+    private final static String REPLY_TIMEOUT = "AMQPRPCSampler.ReplyTimeout";
+    private final static String DIRECT_REPLY = "AMQPRPCSampler.DirectReplyTo";
+
+    private transient Channel channel;
+    private transient Channel directReplyChannel;
+
+    public AMQPRPCSampler() {
+        super();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public SampleResult sample(Entry e) {
+        SampleResult result = new SampleResult();
+        result.setSampleLabel(getName());
+        result.setSuccessful(false);
+        result.setResponseCode("500");
+
+        RpcReplies replies;
+        String replyTo;
+        try {
+            initChannel();
+            replies = getConnectionManager().getRpcReplies();
+            if (getDirectReplyTo()) {
+                consumeDirectReplies(replies);
+                replyTo = DIRECT_REPLY_TO;
+            } else {
+                replyTo = replies.getSharedReplyQueue();
+            }
+        } catch (Exception ex) {
+            log.error("Failed to initialize channel : ", ex);
+            result.setResponseMessage(ex.toString());
+            return result;
+        }
+
+        result.setSampleLabel(getTitle());
+
+        int loop = getIterationsAsInt();
+        int maxInFlight = getMaxInFlightAsInt();
+        int timeout = getReplyTimeoutAsInt();
+        RpcCalls calls = new RpcCalls(loop);
+        byte[] body = getMessage().getBytes();
+        AMQP.BasicProperties template = getProperties();
+
+        result.sampleStart(); // Start timing
+        try {
+            for (int idx = 0; idx < loop; idx++) {
+                if (maxInFlight > 0 && !calls.awaitOutstanding(maxInFlight - 1, timeout)) {
+                    break; // no replies coming back, the rest would time out too
+                }
+                String correlationId = replies.expect(calls, System.nanoTime());
+                AMQP.BasicProperties properties = template.builder()
+                        .correlationId(correlationId)
+                        .replyTo(replyTo)
+                        .build();
+                channel.basicPublish(getExchange(), getRoutingKey(), properties, body);
+            }
+            calls.awaitOutstanding(0, timeout);
+        } catch (Exception ex) {
+            log.debug(ex.getMessage(), ex);
+            result.setResponseCode("000");
+            result.setResponseMessage(ex.toString());
+        } finally {
+            calls.expire(replies);
+            result.sampleEnd(); // End timimg
+        }
+
+        int completed = calls.getCompletedCount();
+        for (AMQPCounters counters : getCounters()) {
+            counters.recordPublished(calls.getSentCount(), (long) calls.getSentCount() * body.length);
+            counters.recordDelivered(completed, 0); // replies are matched on a shared consumer, sizes aren't kept
+        }
+        if (completed > 0) {
+            SingleWriterRecorder latencies = getLatencyRecorder(LatencyHistograms.ROUND_TRIP);
+            long total = 0;
+            for (int i = 0; i < completed; i++) {
+                long latency = calls.getLatencyNanos(i);
+                latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(latency));
+                total += latency;
+            }
+            // the mean round trip of the requests in this sample
+            result.setLatency(TimeUnit.NANOSECONDS.toMillis(total / completed));
+        }
+
+        result.setSamplerData(getMessage());
+        if (completed == loop) {
+            result.setResponseCodeOK();
+            result.setResponseMessage("OK");
+            result.setSuccessful(true);
+        } else if (result.getResponseCode().equals("500")) {
+            result.setResponseCode("504");
+            result.setResponseMessage(completed + " of " + loop + " replies received, "
+                    + (calls.getSentCount() - completed) + " timed out");
+        }
+
+        return result;
+    }
+
+    /**
+     * Starts consuming direct replies on the channel before the first request is published on it,
+     * as the broker refuses a direct reply-to request from a channel without such a consumer.
+     */
+    private void consumeDirectReplies(RpcReplies replies) throws Exception {
+        if (directReplyChannel == channel) {
+            return;
+        }
+        Consumer consumer = getConnectionManager().consumeDirectReplies(channel, replies.newConsumer(channel));
+        if (!RpcReplies.isReplyConsumer(consumer)) {
+            throw new IllegalStateException("Direct replies of this thread's channel are already"
+                    + " consumed by another sampler");
+        }
+        directReplyChannel = channel;
+    }
+
+    /**
+     * @return the request body
+     */
+    public String getMessage() {
+        return getPropertyAsString(MESSAGE);
+    }
+
+    public void setMessage(String content) {
+        setProperty(MESSAGE, content);
+    }
+
+    /**
+     * @return the maximum number of requests per thread waiting for a reply, 0 = unlimited
+     */
+    public String getMaxInFlight() {
+        return getPropertyAsString(MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT_STRING);
+    }
+
+    public void setMaxInFlight(String s) {
+        setProperty(MAX_IN_FLIGHT, s);
+    }
+
+    protected int getMaxInFlightAsInt() {
+        return getPropertyAsInt(MAX_IN_FLIGHT, DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    public String getReplyTimeout() {
+        return getPropertyAsString(REPLY_TIMEOUT, DEFAULT_REPLY_TIMEOUT_STRING);
+    }
+
+    public void setReplyTimeout(String s) {
+        setProperty(REPLY_TIMEOUT, s);
+    }
+
+    protected int getReplyTimeoutAsInt() {
+        if (getPropertyAsInt(REPLY_TIMEOUT) < 1) {
+            return DEFAULT_REPLY_TIMEOUT;
+        }
+        return getPropertyAsInt(REPLY_TIMEOUT);
+    }
+
+    /**
+     * @return true to have replies sent straight to the requesting channel rather than to a queue
+     */
+    public boolean getDirectReplyTo() {
+        return getPropertyAsBoolean(DIRECT_REPLY, DEFAULT_DIRECT_REPLY_TO);
+    }
+
+    public void setDirectReplyTo(Boolean directReplyTo) {
+        setProperty(DIRECT_REPLY, directReplyTo.toString());
+    }
+
+    @Override
+    protected void cleanup() {
+        // the channel goes back to the connection manager's pool, so stop consuming on it
+        if (directReplyChannel != null && directReplyChannel == channel) {
+            getConnectionManager().cancelDirectReplies(channel);
+        }
+        directReplyChannel = null;
+    }
+
+    @Override
+    public boolean interrupt() {
+        cleanup();
+        return true;
+    }
+
+    @Override
+    protected Channel getChannel() {
+        return channel;
+    }
+
+    @Override
+    protected void setChannel(Channel channel) {
+        this.channel = channel;
+    }
+}
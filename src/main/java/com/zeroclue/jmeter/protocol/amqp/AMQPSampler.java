@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.FileInputStream;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
 import java.security.*;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.KeyManager;
@@ -15,20 +17,27 @@ import com.rabbitmq.client.*;
 import org.apache.jmeter.config.ConfigTestElement;
 import org.apache.jmeter.samplers.AbstractSampler;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jmeter.testelement.TestStateListener;
 import org.apache.jmeter.testelement.ThreadListener;
+import org.apache.jmeter.testelement.property.FunctionProperty;
+import org.apache.jmeter.testelement.property.JMeterProperty;
+import org.apache.jmeter.testelement.property.MultiProperty;
+import org.apache.jmeter.testelement.property.PropertyIterator;
 import org.apache.jmeter.engine.util.ConfigMergabilityIndicator;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
+import org.HdrHistogram.SingleWriterRecorder;
 
 import com.rabbitmq.client.AMQP.BasicProperties;
 import org.apache.commons.lang3.StringUtils;
 
 public abstract class AMQPSampler extends AbstractSampler
-    implements ThreadListener, ConfigMergabilityIndicator {
+    implements ThreadListener, TestStateListener, ConfigMergabilityIndicator {
 
     private static final Set<String> APPLIABLE_CONFIG_CLASSES = new HashSet<String>(
             Arrays.asList(new String[]{
-                    "com.zeroclue.jmeter.protocol.amqp.gui.AMQPConnectionManagerGui"}));
+                    "com.zeroclue.jmeter.protocol.amqp.gui.AMQPConnectionManagerGui",
+                    "com.zeroclue.jmeter.protocol.amqp.gui.AMQPTopologyGui"}));
 
     public static final boolean DEFAULT_EXCHANGE_DECLARE = false;
     public static final boolean DEFAULT_EXCHANGE_DURABLE = true;
@@ -37,6 +46,9 @@ public abstract class AMQPSampler extends AbstractSampler
     public static final boolean DEFAULT_QUEUE_REDECLARE = false;
 
 
+    /** RabbitMQ's pseudo-queue for replies sent straight back to the requesting channel. */
+    public static final String DIRECT_REPLY_TO = "amq.rabbitmq.reply-to";
+
     public static final int DEFAULT_ITERATIONS = 1;
     public static final String DEFAULT_ITERATIONS_STRING = Integer.toString(DEFAULT_ITERATIONS);
 
@@ -62,7 +74,17 @@ public abstract class AMQPSampler extends AbstractSampler
     private transient ConnectionFactory factory;
     private transient Connection connection;
 
+    private static final AtomicLong INSTANCES = new AtomicLong();
+
+    // set when the test starts and copied to the clone of every thread
+    private transient String instanceKey;
+
     private transient AMQPConnectionManager connectionManager;
+    private transient List<AMQPTopology> topologies;
+    private transient ConnectionShard connectionShard;
+    private transient AMQPCounters samplerCounters;
+    private transient AMQPCounters[] counters = new AMQPCounters[0];
+    private transient Map<String, SingleWriterRecorder> latencyRecorders;
 
     protected AMQPSampler(){
 
@@ -75,6 +97,16 @@ public abstract class AMQPSampler extends AbstractSampler
                 // We only want the lowest level Connection Manager, ignore the rest.
                 setConnectionManager((AMQPConnectionManager) el);
             }
+        } else if (el instanceof AMQPTopology) {
+            if (topologies == null) {
+                topologies = new ArrayList<AMQPTopology>();
+            }
+            for (AMQPTopology topology : topologies) {
+                if (topology == el) {
+                    return;
+                }
+            }
+            topologies.add((AMQPTopology) el);
         } else {
             super.addTestElement(el);
         }
@@ -94,6 +126,14 @@ public abstract class AMQPSampler extends AbstractSampler
         return connectionManager;
     }
 
+    /**
+     * @return a new channel for this sampler, by default the channel the connection manager leases
+     * to the thread and shares with the thread's other samplers
+     */
+    protected Channel openChannel() throws Exception {
+        return getConnectionManager().getChannel();
+    }
+
     protected boolean initChannel() throws Exception {
         Channel channel = getChannel();
 
@@ -104,30 +144,82 @@ public abstract class AMQPSampler extends AbstractSampler
         }
 
         if(channel == null) {
-            channel = getConnectionManager().getChannel();
+            if (topologies != null) {
+                // provisioned when the test started
+                for (AMQPTopology topology : topologies) {
+                    topology.check(getConnectionManager());
+                }
+            }
+            channel = openChannel();
             setChannel(channel);
+            connectionShard = getConnectionManager().getConnectionShard(channel);
+            samplerCounters = getConnectionManager().getSamplerCounters(getName());
+            counters = connectionShard == null ? new AMQPCounters[] { samplerCounters }
+                    : new AMQPCounters[] { connectionShard, samplerCounters };
 
             //TODO: Break out queue binding
-            boolean queueConfigured = (getQueue() != null && !getQueue().isEmpty());
+            // the direct reply-to pseudo-queue can't be declared or bound
+            boolean queueConfigured = (getQueue() != null && !getQueue().isEmpty())
+                    && !isDirectReplyTo(getQueue());
+
+            // an exclusive queue belongs to the connection declaring it, and an auto-delete or
+            // expiring one may be gone by the time another thread needs it, so those are declared
+            // and bound by every thread
+            boolean declarePerThread = queueExclusive() || queueAutoDelete()
+                    || (getMessageExpires() != null && !getMessageExpires().isEmpty());
 
             if(queueConfigured && getQueueDeclare()) {
-                if (getQueueRedeclare()) {
-                    deleteQueue();
+                final Channel declaring = channel;
+                Callable<Void> declareQueue = new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (getQueueRedeclare()) {
+                            deleteQueue();
+                        }
+                        declaring.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
+                        return null;
+                    }
+                };
+                if (declarePerThread) {
+                    declareQueue.call();
+                } else {
+                    declareOnce("queue", getQueue() + " " + queueDurable() + " " + queueAutoDelete()
+                            + " " + getQueueArguments(), declareQueue);
                 }
-
-                AMQP.Queue.DeclareOk declareQueueResp = channel.queueDeclare(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
+                getConnectionManager().getTopology().recordQueue(getQueue(), queueDurable(), queueExclusive(), queueAutoDelete(), getQueueArguments());
             }
 
             if(!StringUtils.isBlank(getExchange()) && getExchangeDeclare()) { //Use a named exchange
-                if (getExchangeRedeclare()) {
-                    deleteExchange();
-                }
-
-                AMQP.Exchange.DeclareOk declareExchangeResp = channel.exchangeDeclare(getExchange(), getExchangeType(), getExchangeDurable());
+                final Channel declaring = channel;
+                declareOnce("exchange", getExchange() + " " + getExchangeType() + " " + getExchangeDurable(),
+                        new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        if (getExchangeRedeclare()) {
+                            deleteExchange();
+                        }
+                        declaring.exchangeDeclare(getExchange(), getExchangeType(), getExchangeDurable());
+                        return null;
+                    }
+                });
+                getConnectionManager().getTopology().recordExchange(getExchange(), getExchangeType(), getExchangeDurable());
             }
 
             if (queueConfigured) {
-              channel.queueBind(getQueue(), getExchange(), getRoutingKey());
+              final Channel binding = channel;
+              Callable<Void> bind = new Callable<Void>() {
+                  @Override
+                  public Void call() throws Exception {
+                      binding.queueBind(getQueue(), getExchange(), getRoutingKey());
+                      return null;
+                  }
+              };
+              if (declarePerThread) {
+                  bind.call();
+              } else {
+                  declareOnce("binding", getQueue() + " " + getExchange() + " " + getRoutingKey(), bind);
+              }
+              getConnectionManager().getTopology().recordBinding(getQueue(), getExchange(), getRoutingKey());
             }
 
             log.info("bound to:"
@@ -142,6 +234,14 @@ public abstract class AMQPSampler extends AbstractSampler
         return true;
     }
 
+    /*
+     * Declares once per test across all threads and samplers of the JVM, the other threads wait
+     * for the declaration rather than repeating it.
+     */
+    private void declareOnce(String kind, String name, Callable<Void> declaration) throws Exception {
+        TopologyRegistry.declareOnce(TopologyRegistry.key(getConnectionManager(), kind, name), declaration);
+    }
+
     private Map<String, Object> getQueueArguments() {
         Map<String, Object> arguments = new HashMap<String, Object>();
 
@@ -154,6 +254,100 @@ public abstract class AMQPSampler extends AbstractSampler
         return arguments;
     }
 
+    protected static boolean isDirectReplyTo(String queue) {
+        return DIRECT_REPLY_TO.equals(queue);
+    }
+
+    /**
+     * @return whether the connection manager recovers the connection lost with the channel; a
+     * channel closed by the broker, e.g. because the queue was deleted, isn't
+     */
+    protected boolean recoverable(ShutdownSignalException e) {
+        return e.isHardError() && !e.isInitiatedByApplication() && getConnectionManager().isAutomaticRecovery();
+    }
+
+    /**
+     * Waits for the connection manager to recover the connection lost with the channel, and opens
+     * a new channel on it.
+     */
+    protected void reopenChannel(ShutdownSignalException cause) throws IOException, InterruptedException {
+        try {
+            initChannel();
+        } catch (IOException | InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Failed to reopen the channel after " + cause.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the live counters of every thread of this sampler
+     */
+    protected AMQPCounters getSamplerCounters() {
+        return samplerCounters;
+    }
+
+    /**
+     * @return the counters of this sampler's connection and of the sampler itself, to update
+     * both with every message
+     */
+    protected AMQPCounters[] getCounters() {
+        return counters;
+    }
+
+    /**
+     * @return the connection the channel of this sampler belongs to, for throughput counters
+     */
+    protected ConnectionShard getConnectionShard() {
+        return connectionShard;
+    }
+
+    /**
+     * Returns this thread's recorder of per-message latencies, in microseconds. The recorders of
+     * all threads are merged and reported when the test ends.
+     *
+     * @param metric one of the {@link LatencyHistograms} metrics
+     */
+    protected SingleWriterRecorder getLatencyRecorder(String metric) {
+        if (latencyRecorders == null) {
+            latencyRecorders = new HashMap<String, SingleWriterRecorder>();
+        }
+        SingleWriterRecorder recorder = latencyRecorders.get(metric);
+        if (recorder == null) {
+            recorder = LatencyHistograms.newRecorder(getName(), metric);
+            latencyRecorders.put(metric, recorder);
+        }
+        return recorder;
+    }
+
+    /**
+     * @return true if any of the named properties holds a JMeter function or variable, so its
+     * value may change from one sample to the next
+     */
+    protected boolean hasFunctions(String... names) {
+        for (String name : names) {
+            if (hasFunctions(getProperty(name))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasFunctions(JMeterProperty property) {
+        if (property instanceof FunctionProperty) {
+            return true;
+        }
+        if (property instanceof MultiProperty) {
+            PropertyIterator it = ((MultiProperty) property).iterator();
+            while (it.hasNext()) {
+                if (hasFunctions(it.next())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     protected abstract Channel getChannel();
     protected abstract void setChannel(Channel channel);
 
@@ -356,6 +550,43 @@ public abstract class AMQPSampler extends AbstractSampler
 
     }
 
+    @Override
+    public void testStarted() {
+        instanceKey = getName() + "#" + INSTANCES.incrementAndGet();
+        LatencyHistograms.reset();
+        TopologyRegistry.reset();
+    }
+
+    /**
+     * @return the key of the state shared by the threads of this sampler, the same for its clone in
+     * every thread but distinct from other samplers, even those with the same name
+     */
+    protected String getInstanceKey() {
+        return instanceKey == null ? getName() : instanceKey;
+    }
+
+    @Override
+    public Object clone() {
+        AMQPSampler clone = (AMQPSampler) super.clone();
+        clone.instanceKey = instanceKey;
+        return clone;
+    }
+
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    @Override
+    public void testEnded() {
+        LatencyHistograms.report();
+    }
+
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
+
     protected void deleteQueue() throws Exception {
         // use a different channel since channel closes on exception.
         Channel channel = getConnectionManager().createChannel();
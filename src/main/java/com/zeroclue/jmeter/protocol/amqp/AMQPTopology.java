@@ -0,0 +1,672 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.jmeter.config.ConfigElement;
+import org.apache.jmeter.config.ConfigTestElement;
+import org.apache.jmeter.engine.util.NoThreadClone;
+import org.apache.jmeter.testelement.TestStateListener;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Address;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+/**
+ * Declares a large topology before the samplers start: queues, exchanges and bindings whose names
+ * follow a pattern, e.g. <code>orders-${n}</code> for n from 0 to the count - 1.
+ *
+ * The declarations are spread over several channels declaring in parallel, on a connection of its
+ * own opened with the element's connection settings. They run when the test starts, before any
+ * sampler thread does, so provisioning is over before any sample is timed; if it fails, the
+ * samplers in its scope fail rather than run against a missing topology. The time it took and the
+ * declarations per second are logged and exposed over JMX, and the topology can be deleted again
+ * when the test ends.
+ *
+ * An exchange name without <code>${n}</code> is a single exchange every queue is bound to,
+ * otherwise queue n is bound to exchange n.
+ *
+ * Durable queues and exchanges outlive a broker restart, so only a topology that isn't durable is
+ * recorded for the AMQP Connection Managers of the samplers to declare again on recovery.
+ */
+public class AMQPTopology extends ConfigTestElement
+    implements TestStateListener, NoThreadClone, AMQPTopologyMBean {
+
+    private static final long serialVersionUID = 1L;
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String N = "${n}";
+
+    public static final int DEFAULT_COUNT = 1;
+    public static final String DEFAULT_COUNT_STRING = Integer.toString(DEFAULT_COUNT);
+
+    public static final int DEFAULT_CHANNELS = 4;
+    public static final String DEFAULT_CHANNELS_STRING = Integer.toString(DEFAULT_CHANNELS);
+
+    public static final String DEFAULT_EXCHANGE_TYPE = "direct";
+    public static final boolean DEFAULT_DURABLE = true;
+    public static final boolean DEFAULT_TEARDOWN = false;
+
+    public static final String DEFAULT_HOST = "localhost";
+    public static final String DEFAULT_VIRTUAL_HOST = "/";
+    public static final String DEFAULT_USERNAME = "guest";
+    public static final String DEFAULT_PASSWORD = "guest";
+    public static final boolean DEFAULT_SSL = false;
+    public static final boolean DEFAULT_SSL_CLIENT_CERT = false;
+
+    //++ These are JMX names, and must not be changed
+    private static final String QUEUE_PATTERN = "AMQPTopology.QueuePattern";
+    private static final String EXCHANGE_PATTERN = "AMQPTopology.ExchangePattern";
+    private static final String EXCHANGE_TYPE = "AMQPTopology.ExchangeType";
+    private static final String BINDING_KEY_PATTERN = "AMQPTopology.BindingKeyPattern";
+    private static final String COUNT = "AMQPTopology.Count";
+    private static final String DURABLE = "AMQPTopology.Durable";
+    private static final String CHANNELS = "AMQPTopology.Channels";
+    private static final String TEARDOWN = "AMQPTopology.Teardown";
+    private static final String HOST = "AMQPTopology.Host";
+    private static final String PORT = "AMQPTopology.Port";
+    private static final String VIRTUAL_HOST = "AMQPTopology.VirtualHost";
+    private static final String USERNAME = "AMQPTopology.Username";
+    private static final String PASSWORD = "AMQPTopology.Password";
+    private static final String SSL = "AMQPTopology.SSL";
+    private static final String SSL_CLIENT_CERT = "AMQPTopology.SSLClientCert";
+    private static final String PATH_TO_KEY_STORE = "AMQPTopology.PathToKeyStore";
+    private static final String KEY_STORE_PASSWORD = "AMQPTopology.KeyStorePassword";
+    private static final String PATH_TO_TRUST_STORE = "AMQPTopology.PathToTrustStore";
+    private static final String TRUST_STORE_PASSWORD = "AMQPTopology.TrustStorePassword";
+
+    private transient ConnectionFactory factory; // guarded by this
+    private transient Address[] addresses; // guarded by this
+    private transient boolean provisioned; // guarded by this
+    private transient Exception failure; // guarded by this
+    private transient Set<AMQPConnectionManager> recorded; // guarded by this
+    private transient ObjectName mbean; // guarded by this
+
+    // read once when the test starts, the worker threads can't evaluate properties
+    private transient String queuePattern;
+    private transient String exchangePattern;
+    private transient String exchangeType;
+    private transient String bindingKeyPattern;
+    private transient boolean durable;
+    private transient int count;
+    private transient int channels;
+
+    private transient volatile long declarations;
+    private transient volatile long provisionNanos;
+    private transient volatile long teardownNanos;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addConfigElement(ConfigElement config) {
+        // applied to the samplers, like the connection manager
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean expectsModification() {
+        return false;
+    }
+
+    /**
+     * Declares the topology with the connection settings of this element, before the sampler
+     * threads start.
+     */
+    private synchronized void provision() throws Exception {
+        queuePattern = getQueuePattern();
+        exchangePattern = getExchangePattern();
+        exchangeType = getExchangeType();
+        bindingKeyPattern = getBindingKeyPattern();
+        durable = getDurable();
+        count = getCountAsInt();
+        channels = getChannelsAsInt();
+
+        factory = new ConnectionFactory();
+        factory.setVirtualHost(getVirtualHost());
+        factory.setUsername(getUsername());
+        factory.setPassword(getPassword());
+        if (getSSL()) {
+            // the same contexts as the connection managers, shared with those using the same stores
+            TlsContext tls = getSSLClientCert()
+                    ? TlsContext.forStores(getPathToKeyStore(), getKeyStorePassword(),
+                            getPathToTrustStore(), getTrustStorePassword())
+                    : TlsContext.trustAll();
+            factory.setSocketFactory(tls.getSocketFactory());
+        }
+        String[] hosts = getHost().split(",");
+        addresses = new Address[hosts.length];
+        for (int i = 0; i < hosts.length; i++) {
+            addresses[i] = new Address(hosts[i].trim(), getPortAsInt());
+        }
+
+        long start = System.nanoTime();
+        declarations = run(new Work() {
+            @Override
+            int single(Channel channel) throws IOException {
+                if (isBlank(exchangePattern) || isPatterned(exchangePattern)) {
+                    return 0;
+                }
+                channel.exchangeDeclare(exchangePattern, exchangeType, durable);
+                return 1;
+            }
+
+            @Override
+            int each(Channel channel, int n) throws IOException {
+                int declared = 0;
+                if (isPatterned(exchangePattern)) {
+                    channel.exchangeDeclare(exchange(n), exchangeType, durable);
+                    declared++;
+                }
+                if (!isBlank(queuePattern)) {
+                    channel.queueDeclare(queue(n), durable, false, false, null);
+                    declared++;
+                    if (!isBlank(exchangePattern)) {
+                        channel.queueBind(queue(n), exchange(n), bindingKey(n));
+                        declared++;
+                    }
+                }
+                return declared;
+            }
+        });
+        provisionNanos = System.nanoTime() - start;
+        provisioned = true;
+        registerMBean();
+        log.info("Provisioned " + getName() + ": " + declarations + " declarations in "
+                + getProvisionMillis() + " ms over " + channels + " channels ("
+                + getDeclarationRate() + "/s)");
+    }
+
+    /**
+     * Called by the samplers in scope when they open their channel: fails them if provisioning
+     * failed, and records a topology that isn't durable for their manager to declare again on
+     * recovery, once per manager.
+     *
+     * @throws Exception the failure of the declarations, to every thread
+     */
+    public synchronized void check(AMQPConnectionManager manager) throws Exception {
+        if (failure != null) {
+            throw failure;
+        }
+        if (!provisioned || durable) {
+            return;
+        }
+        if (recorded == null) {
+            recorded = Collections.newSetFromMap(new IdentityHashMap<AMQPConnectionManager, Boolean>());
+        }
+        if (recorded.add(manager)) {
+            record(manager.getTopology());
+        }
+    }
+
+    // so that a recovered connection declares the topology again
+    private void record(Topology topology) {
+        boolean fixedExchange = !isBlank(exchangePattern) && !isPatterned(exchangePattern);
+        if (fixedExchange) {
+            topology.recordExchange(exchangePattern, exchangeType, durable);
+        }
+        for (int n = 0; n < count; n++) {
+            if (isPatterned(exchangePattern)) {
+                topology.recordExchange(exchange(n), exchangeType, durable);
+            }
+            if (!isBlank(queuePattern)) {
+                topology.recordQueue(queue(n), durable, false, false, null);
+                if (!isBlank(exchangePattern)) {
+                    topology.recordBinding(queue(n), exchange(n), bindingKey(n));
+                }
+            }
+        }
+    }
+
+    private synchronized void teardown() throws Exception {
+        if (!provisioned) {
+            return;
+        }
+        long start = System.nanoTime();
+        long deleted = run(new Work() {
+            @Override
+            int each(Channel channel, int n) throws IOException {
+                int deleted = 0;
+                if (!isBlank(queuePattern)) {
+                    channel.queueDelete(queue(n));
+                    deleted++;
+                }
+                if (isPatterned(exchangePattern)) {
+                    channel.exchangeDelete(exchange(n));
+                    deleted++;
+                }
+                return deleted;
+            }
+
+            // after the queues bound to it
+            @Override
+            int last(Channel channel) throws IOException {
+                if (isBlank(exchangePattern) || isPatterned(exchangePattern)) {
+                    return 0;
+                }
+                channel.exchangeDelete(exchangePattern);
+                return 1;
+            }
+        });
+        teardownNanos = System.nanoTime() - start;
+        log.info("Tore down " + getName() + ": " + deleted + " deletions in " + getTeardownMillis() + " ms");
+    }
+
+    /*
+     * Runs the work on a connection of its own, the work for each n spread over the channels.
+     *
+     * @return the number of declarations or deletions
+     */
+    private long run(final Work work) throws Exception {
+        final Connection connection = factory.newConnection(addresses);
+        final int stride = Math.min(channels, Math.max(1, count));
+        ExecutorService workers = Executors.newFixedThreadPool(stride);
+        try {
+            long done = 0;
+            Channel first = connection.createChannel();
+            done += work.single(first);
+            first.close();
+
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int c = 0; c < stride; c++) {
+                final int from = c;
+                results.add(workers.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        Channel channel = connection.createChannel();
+                        int handled = 0;
+                        for (int n = from; n < count; n += stride) {
+                            handled += work.each(channel, n);
+                        }
+                        if (channel.isOpen()) {
+                            channel.close();
+                        }
+                        return handled;
+                    }
+                }));
+            }
+            for (Future<Integer> result : results) {
+                done += get(result);
+            }
+
+            Channel last = connection.createChannel();
+            done += work.last(last);
+            last.close();
+            return done;
+        } finally {
+            workers.shutdownNow();
+            if (connection.isOpen()) {
+                connection.close();
+            }
+        }
+    }
+
+    private static int get(Future<Integer> result) throws Exception {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * What to do for each n, on one of the channels working in parallel.
+     */
+    private abstract static class Work {
+        // before the others, on a single channel
+        int single(Channel channel) throws IOException {
+            return 0;
+        }
+
+        abstract int each(Channel channel, int n) throws IOException;
+
+        // after the others, on a single channel
+        int last(Channel channel) throws IOException {
+            return 0;
+        }
+    }
+
+    private String queue(int n) {
+        return substitute(queuePattern, n);
+    }
+
+    private String exchange(int n) {
+        return substitute(exchangePattern, n);
+    }
+
+    private String bindingKey(int n) {
+        return substitute(bindingKeyPattern, n);
+    }
+
+    private static String substitute(String pattern, int n) {
+        return pattern.replace(N, Integer.toString(n));
+    }
+
+    private static boolean isPatterned(String pattern) {
+        return pattern.contains(N);
+    }
+
+    private static boolean isBlank(String s) {
+        return s == null || s.trim().isEmpty();
+    }
+
+    @Override
+    public void testStarted() {
+        declarations = 0;
+        provisionNanos = 0;
+        teardownNanos = 0;
+        synchronized (this) {
+            provisioned = false;
+            failure = null;
+            recorded = null;
+            try {
+                provision();
+            } catch (Exception e) {
+                log.error("Failed to provision " + getName(), e);
+                failure = e;
+            }
+        }
+    }
+
+    @Override
+    public void testStarted(String host) {
+        testStarted();
+    }
+
+    @Override
+    public void testEnded() {
+        if (getTeardown()) {
+            try {
+                teardown();
+            } catch (Exception e) {
+                log.error("Failed to tear down " + getName(), e);
+            }
+        }
+        synchronized (this) {
+            factory = null;
+            addresses = null;
+            recorded = null;
+            unregisterMBean();
+        }
+    }
+
+    @Override
+    public void testEnded(String host) {
+        testEnded();
+    }
+
+    // as com.zeroclue.jmeter.protocol.amqp:type=Topology,name=...
+    private void registerMBean() {
+        try {
+            ObjectName objectName = new ObjectName(AMQPConnectionManager.JMX_DOMAIN + ":type=Topology,name="
+                    + ObjectName.quote(getName()));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName); // left over by a test that didn't end cleanly
+            }
+            server.registerMBean(this, objectName);
+            mbean = objectName;
+        } catch (JMException e) {
+            log.warn("Failed to register MBean for " + getName(), e);
+        }
+    }
+
+    private void unregisterMBean() {
+        if (mbean == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(mbean)) {
+                server.unregisterMBean(mbean);
+            }
+        } catch (JMException e) {
+            log.warn("Failed to unregister MBean " + mbean, e);
+        }
+        mbean = null;
+    }
+
+    @Override
+    public long getDeclarationCount() {
+        return declarations;
+    }
+
+    @Override
+    public long getProvisionMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(provisionNanos);
+    }
+
+    @Override
+    public long getDeclarationRate() {
+        long nanos = provisionNanos;
+        return nanos < 1 ? 0 : declarations * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    @Override
+    public long getTeardownMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(teardownNanos);
+    }
+
+    /**
+     * @return the name of each queue, with <code>${n}</code> standing for its number; none if blank
+     */
+    public String getQueuePattern() {
+        return getPropertyAsString(QUEUE_PATTERN);
+    }
+
+    public void setQueuePattern(String s) {
+        setProperty(QUEUE_PATTERN, s);
+    }
+
+    /**
+     * @return the name of the exchange the queues are bound to, or of each exchange if it has
+     * <code>${n}</code>; none if blank
+     */
+    public String getExchangePattern() {
+        return getPropertyAsString(EXCHANGE_PATTERN);
+    }
+
+    public void setExchangePattern(String s) {
+        setProperty(EXCHANGE_PATTERN, s);
+    }
+
+    public String getExchangeType() {
+        return getPropertyAsString(EXCHANGE_TYPE, DEFAULT_EXCHANGE_TYPE);
+    }
+
+    public void setExchangeType(String s) {
+        setProperty(EXCHANGE_TYPE, s);
+    }
+
+    /**
+     * @return the routing key binding queue n, e.g. <code>orders.${n}.#</code> for a topic exchange
+     */
+    public String getBindingKeyPattern() {
+        return getPropertyAsString(BINDING_KEY_PATTERN);
+    }
+
+    public void setBindingKeyPattern(String s) {
+        setProperty(BINDING_KEY_PATTERN, s);
+    }
+
+    /**
+     * @return the number of queues and patterned exchanges
+     */
+    protected int getCountAsInt() {
+        if (getPropertyAsInt(COUNT) < 1) {
+            return DEFAULT_COUNT;
+        }
+        return getPropertyAsInt(COUNT);
+    }
+
+    public String getCount() {
+        return getPropertyAsString(COUNT, DEFAULT_COUNT_STRING);
+    }
+
+    public void setCount(String s) {
+        setProperty(COUNT, s);
+    }
+
+    public boolean getDurable() {
+        return getPropertyAsBoolean(DURABLE, DEFAULT_DURABLE);
+    }
+
+    public void setDurable(Boolean durable) {
+        setProperty(DURABLE, durable.toString());
+    }
+
+    /**
+     * @return the number of channels declaring in parallel
+     */
+    protected int getChannelsAsInt() {
+        if (getPropertyAsInt(CHANNELS) < 1) {
+            return DEFAULT_CHANNELS;
+        }
+        return getPropertyAsInt(CHANNELS);
+    }
+
+    public String getChannels() {
+        return getPropertyAsString(CHANNELS, DEFAULT_CHANNELS_STRING);
+    }
+
+    public void setChannels(String s) {
+        setProperty(CHANNELS, s);
+    }
+
+    /**
+     * @return true to delete the queues and exchanges when the test ends
+     */
+    public boolean getTeardown() {
+        return getPropertyAsBoolean(TEARDOWN, DEFAULT_TEARDOWN);
+    }
+
+    public void setTeardown(Boolean teardown) {
+        setProperty(TEARDOWN, teardown.toString());
+    }
+
+    public String getHost() {
+        return getPropertyAsString(HOST, DEFAULT_HOST);
+    }
+
+    public void setHost(String s) {
+        setProperty(HOST, s);
+    }
+
+    protected int getPortAsInt() {
+        if (getPropertyAsInt(PORT) < 1) {
+            return AMQPConnectionManager.DEFAULT_PORT;
+        }
+        return getPropertyAsInt(PORT);
+    }
+
+    public String getPort() {
+        return getPropertyAsString(PORT, AMQPConnectionManager.DEFAULT_PORT_STRING);
+    }
+
+    public void setPort(String s) {
+        setProperty(PORT, s);
+    }
+
+    public String getVirtualHost() {
+        return getPropertyAsString(VIRTUAL_HOST, DEFAULT_VIRTUAL_HOST);
+    }
+
+    public void setVirtualHost(String s) {
+        setProperty(VIRTUAL_HOST, s);
+    }
+
+    public String getUsername() {
+        return getPropertyAsString(USERNAME, DEFAULT_USERNAME);
+    }
+
+    public void setUsername(String s) {
+        setProperty(USERNAME, s);
+    }
+
+    public String getPassword() {
+        return getPropertyAsString(PASSWORD, DEFAULT_PASSWORD);
+    }
+
+    public void setPassword(String s) {
+        setProperty(PASSWORD, s);
+    }
+
+    /**
+     * @return true to connect over TLS, trusting the broker's certificate unless a client
+     * certificate is used
+     */
+    public boolean getSSL() {
+        return getPropertyAsBoolean(SSL, DEFAULT_SSL);
+    }
+
+    public void setSSL(Boolean ssl) {
+        setProperty(SSL, ssl.toString());
+    }
+
+    /**
+     * @return true to present the certificate of the key store and check the broker's against the
+     * trust store, for brokers requiring mutual TLS
+     */
+    public boolean getSSLClientCert() {
+        return getPropertyAsBoolean(SSL_CLIENT_CERT, DEFAULT_SSL_CLIENT_CERT);
+    }
+
+    public void setSSLClientCert(Boolean clientCert) {
+        setProperty(SSL_CLIENT_CERT, clientCert.toString());
+    }
+
+    public String getPathToKeyStore() {
+        return getPropertyAsString(PATH_TO_KEY_STORE);
+    }
+
+    public void setPathToKeyStore(String s) {
+        setProperty(PATH_TO_KEY_STORE, s);
+    }
+
+    public String getKeyStorePassword() {
+        return getPropertyAsString(KEY_STORE_PASSWORD);
+    }
+
+    public void setKeyStorePassword(String s) {
+        setProperty(KEY_STORE_PASSWORD, s);
+    }
+
+    public String getPathToTrustStore() {
+        return getPropertyAsString(PATH_TO_TRUST_STORE);
+    }
+
+    public void setPathToTrustStore(String s) {
+        setProperty(PATH_TO_TRUST_STORE, s);
+    }
+
+    public String getTrustStorePassword() {
+        return getPropertyAsString(TRUST_STORE_PASSWORD);
+    }
+
+    public void setTrustStorePassword(String s) {
+        setProperty(TRUST_STORE_PASSWORD, s);
+    }
+}
@@ -0,0 +1,21 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * The provisioning of an {@link AMQPTopology} as seen over JMX.
+ */
+public interface AMQPTopologyMBean {
+
+    /**
+     * @return the number of declarations and bindings made before the test
+     */
+    long getDeclarationCount();
+
+    long getProvisionMillis();
+
+    /**
+     * @return the declarations per second while provisioning
+     */
+    long getDeclarationRate();
+
+    long getTeardownMillis();
+}
@@ -0,0 +1,84 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A constant arrival rate shared by every thread of a publisher.
+ *
+ * Threads claim successive send slots and wait for them, so the rate does not drop when the
+ * broker slows down: slots that can't be served in time pile up in the past and are sent late.
+ * Latencies measured from the intended send time of a slot include that delay, rather than
+ * hiding it the way a closed loop of threads does (coordinated omission).
+ */
+public class ArrivalSchedule {
+
+    // park until this close to the slot, then spin
+    private static final long SPIN_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private static final ConcurrentMap<String, ArrivalSchedule> SCHEDULES =
+            new ConcurrentHashMap<String, ArrivalSchedule>();
+
+    private final double ratePerSecond;
+    private final long startNanos;
+    private final AtomicLong nextSlot = new AtomicLong();
+
+    private ArrivalSchedule(double ratePerSecond) {
+        this.ratePerSecond = ratePerSecond;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the schedule shared by every thread of a sampler, keyed by its instance key, started
+     * by the first call
+     */
+    public static ArrivalSchedule forSampler(String sampler, double ratePerSecond) {
+        ArrivalSchedule schedule = SCHEDULES.get(sampler);
+        if (schedule == null) {
+            schedule = new ArrivalSchedule(ratePerSecond);
+            ArrivalSchedule existing = SCHEDULES.putIfAbsent(sampler, schedule);
+            if (existing != null) {
+                schedule = existing;
+            }
+        }
+        return schedule;
+    }
+
+    /**
+     * Forgets the schedules of the previous test.
+     */
+    public static void reset() {
+        SCHEDULES.clear();
+    }
+
+    /**
+     * @return the intended <code>System.nanoTime()</code> of the next free send slot
+     */
+    public long claim() {
+        long slot = nextSlot.getAndIncrement();
+        return startNanos + (long) (slot * 1e9 / ratePerSecond);
+    }
+
+    /**
+     * Waits until the given <code>System.nanoTime()</code>, returning at once if it has passed.
+     */
+    public static void awaitNanos(long intended) throws InterruptedException {
+        long remaining;
+        while ((remaining = intended - System.nanoTime()) > SPIN_NANOS) {
+            LockSupport.parkNanos(remaining - SPIN_NANOS);
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        while (intended - System.nanoTime() > 0) {
+            // spin for the last few microseconds, parking isn't that precise
+        }
+    }
+
+    public double getRatePerSecond() {
+        return ratePerSecond;
+    }
+}
@@ -0,0 +1,30 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * Arrays to copy message bodies into before publishing, reused for bodies of the same length.
+ *
+ * <code>basicPublish</code> sends a whole array and has encoded it by the time it returns, so a
+ * thread can fill the same array again for its next message. Bodies of varying length map to a
+ * few slots by length; an array is only allocated when its slot last held another length.
+ *
+ * Not thread safe, every publishing thread has its own.
+ */
+public class BodyArrays {
+
+    private static final int SLOTS = 64;
+
+    private final byte[][] arrays = new byte[SLOTS][];
+
+    /**
+     * @return an array of exactly the given length, whose content is overwritten by later calls
+     */
+    public byte[] get(int length) {
+        int slot = length & (SLOTS - 1);
+        byte[] array = arrays[slot];
+        if (array == null || array.length != length) {
+            array = new byte[length];
+            arrays[slot] = array;
+        }
+        return array;
+    }
+}
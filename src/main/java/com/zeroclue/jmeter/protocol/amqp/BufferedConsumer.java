@@ -0,0 +1,282 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConsumerCancelledException;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * A push based consumer handing deliveries from the connection's dispatch thread to a sampler
+ * through a bounded ring buffer, instead of the unbounded queue of <code>QueueingConsumer</code>.
+ *
+ * The ring is allocated once. With manual acks and a prefetch count no larger than the ring it never
+ * overflows, and nothing else piles up on the heap. Auto-acked deliveries aren't limited by the
+ * prefetch count, so the ring can fill up; the dispatch thread serves every consumer of the
+ * connection and never waits for room, a delivery finding the ring full is dropped at once. It is
+ * nacked back to the queue if it wasn't auto-acked, otherwise it is lost and the sampler fails the
+ * sample that finds it counted in {@link #takeDropped()}.
+ *
+ * Only one thread may call {@link #next(long)}; the delivery it takes is then available through
+ * {@link #getBody()}, {@link #getDeliveryTag()} and {@link #getProperties()} until the next call.
+ */
+public class BufferedConsumer extends DefaultConsumer {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final int capacity;
+    private final boolean autoAck;
+    private final byte[][] bodies;
+    private final long[] deliveryTags;
+    private final AMQP.BasicProperties[] properties;
+    private final AMQPCounters[] counters;
+
+    private final Object lock = new Object();
+    private int head; // guarded by lock
+    private int count; // guarded by lock
+    private int highWaterMark; // guarded by lock
+    private boolean closed; // guarded by lock
+    private long dropped; // guarded by lock
+    private long unreported; // guarded by lock, dropped since takeDropped()
+    private boolean draining; // guarded by lock
+    private long drained; // guarded by lock
+
+    private volatile ShutdownSignalException shutdown;
+    private volatile ConsumerCancelledException cancelled;
+
+    private byte[] body;
+    private long deliveryTag;
+    private AMQP.BasicProperties deliveryProperties;
+
+    /**
+     * @param autoAck whether the deliveries are acked by the broker as they are sent, so that a
+     * dropped one is lost rather than nacked
+     * @param counters live counters of the deliveries waiting in the buffer
+     */
+    public BufferedConsumer(Channel channel, int capacity, boolean autoAck, AMQPCounters... counters) {
+        super(channel);
+        this.capacity = capacity;
+        this.autoAck = autoAck;
+        this.counters = counters;
+        this.bodies = new byte[capacity][];
+        this.deliveryTags = new long[capacity];
+        this.properties = new AMQP.BasicProperties[capacity];
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties props, byte[] body) {
+        synchronized (lock) {
+            if (draining) {
+                drained++;
+                return;
+            }
+            if (closed) {
+                return; // redelivered once the channel closes unless it was auto-acked
+            }
+            if (count == capacity) {
+                drop(envelope.getDeliveryTag());
+                return;
+            }
+            int tail = (head + count) % capacity;
+            bodies[tail] = body;
+            deliveryTags[tail] = envelope.getDeliveryTag();
+            properties[tail] = props;
+            count++;
+            recordBuffered(1);
+            if (count > highWaterMark) {
+                highWaterMark = count;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    /*
+     * Called with the lock held, the nack doesn't wait for the broker.
+     */
+    private void drop(long tag) {
+        unreported++;
+        if (dropped++ == 0) {
+            log.warn("Consumer buffer of " + capacity + " deliveries is full, dropping deliveries"
+                    + (autoAck ? " (auto-acked, so they are lost)" : " back to the queue"));
+        }
+        if (!autoAck) {
+            try {
+                getChannel().basicNack(tag, false, true);
+            } catch (IOException e) {
+                log.debug("Failed to nack dropped delivery " + tag, e);
+            }
+        }
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+        cancelled = new ConsumerCancelledException();
+        wakeUp();
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        shutdown = sig;
+        wakeUp();
+    }
+
+    /**
+     * Takes the next delivery from the buffer, waiting for one to arrive if needed. Once the
+     * channel is closed, deliveries that need an ack are no longer handed out.
+     *
+     * @return false if nothing arrived within the timeout
+     */
+    public boolean next(long timeoutMillis) throws InterruptedException {
+        synchronized (lock) {
+            if (shutdown != null && !autoAck) {
+                // the deliveries still buffered can't be acked on the closed channel
+                throw shutdown;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (count == 0) {
+                checkAlive();
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+
+            body = bodies[head];
+            deliveryTag = deliveryTags[head];
+            deliveryProperties = properties[head];
+            bodies[head] = null;
+            properties[head] = null;
+            head = (head + 1) % capacity;
+            count--;
+            if (!closed) {
+                recordBuffered(-1);
+            }
+            lock.notifyAll();
+            return true;
+        }
+    }
+
+    /**
+     * Counts and discards deliveries instead of buffering them, until a sampler claims them. For
+     * deliveries that no sampler may read, such as the direct replies to a publisher.
+     */
+    public void drain() {
+        synchronized (lock) {
+            draining = true;
+        }
+    }
+
+    /**
+     * Buffers the deliveries from now on, for a sampler that reads them.
+     */
+    public void claim() {
+        synchronized (lock) {
+            draining = false;
+        }
+    }
+
+    /**
+     * Stops accepting deliveries.
+     */
+    public void close() {
+        synchronized (lock) {
+            if (!closed) {
+                recordBuffered(-count); // dropped, redelivered unless they were auto-acked
+            }
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void recordBuffered(int change) {
+        for (AMQPCounters c : counters) {
+            c.recordBuffered(change);
+        }
+    }
+
+    private void wakeUp() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    private void checkAlive() {
+        if (shutdown != null) {
+            throw shutdown;
+        }
+        if (cancelled != null) {
+            throw cancelled;
+        }
+    }
+
+    public byte[] getBody() {
+        return body;
+    }
+
+    public long getDeliveryTag() {
+        return deliveryTag;
+    }
+
+    public AMQP.BasicProperties getProperties() {
+        return deliveryProperties;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return the number of deliveries waiting in the buffer
+     */
+    public int getOccupancy() {
+        synchronized (lock) {
+            return count;
+        }
+    }
+
+    /**
+     * @return the number of deliveries discarded while draining
+     */
+    public long getDrainedCount() {
+        synchronized (lock) {
+            return drained;
+        }
+    }
+
+    /**
+     * @return the number of deliveries dropped since the last call, because the buffer was full
+     */
+    public long takeDropped() {
+        synchronized (lock) {
+            long taken = unreported;
+            unreported = 0;
+            return taken;
+        }
+    }
+
+    /**
+     * @return the number of deliveries dropped because the buffer was full
+     */
+    public long getDroppedCount() {
+        synchronized (lock) {
+            return dropped;
+        }
+    }
+
+    /**
+     * @return the largest number of deliveries the buffer has held at once
+     */
+    public int getHighWaterMark() {
+        synchronized (lock) {
+            return highWaterMark;
+        }
+    }
+}
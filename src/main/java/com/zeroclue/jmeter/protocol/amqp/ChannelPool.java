@@ -0,0 +1,276 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jmeter.threads.AbstractThreadGroup;
+import org.apache.jmeter.threads.JMeterContextService;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * A bounded pool of channels owned by an {@link AMQPConnectionManager}.
+ *
+ * Channels are not thread safe, so each JMeter thread leases its own channel and keeps it until
+ * the thread finishes. A bounded pool must therefore have a channel for every thread of the thread
+ * groups using it, a smaller pool is rejected when the first thread leases a channel rather than
+ * leaving the extra threads to time out. Threads of a thread group started after others finished
+ * may wait for one of their channels to be released. Channels found closed are discarded and replaced with a new one, and so are channels
+ * retired because a sampler switched them to confirm or transaction mode, which can't be undone.
+ */
+public class ChannelPool implements ChannelPoolMBean {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final AMQPConnectionManager manager;
+    private final int maxSize; // 0 = unbounded
+
+    private final Object lock = new Object();
+    private final Deque<Channel> idle = new ArrayDeque<Channel>();
+    private int created; // guarded by lock
+    private boolean closed; // guarded by lock
+    private final Set<AbstractThreadGroup> groups = Collections.newSetFromMap(
+            new IdentityHashMap<AbstractThreadGroup, Boolean>()); // guarded by lock
+    private int threads; // of the groups, guarded by lock
+
+    private final ThreadLocal<Channel> leased = new ThreadLocal<Channel>();
+    private final Set<Channel> retired = Collections.newSetFromMap(new ConcurrentHashMap<Channel, Boolean>());
+
+    private final AtomicLong acquires = new AtomicLong();
+    private final AtomicLong waits = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+
+    public ChannelPool(AMQPConnectionManager manager, int maxSize) {
+        this.manager = manager;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the channel leased to the calling thread, leasing one from the pool if the thread
+     * has none or its channel has been closed.
+     *
+     * @param timeoutMillis how long to wait for a free channel, 0 = forever
+     */
+    public Channel acquire(long timeoutMillis) throws Exception {
+        Channel channel = leased.get();
+        if (channel != null) {
+            if (channel.isOpen()) {
+                return channel;
+            }
+            log.warn("Replacing closed channel " + channel.getChannelNumber());
+            replaced.incrementAndGet();
+            leased.remove();
+            retired.remove(channel);
+            discard();
+        } else if (maxSize > 0) {
+            checkSize(JMeterContextService.getContext().getThreadGroup());
+        }
+
+        acquires.incrementAndGet();
+        channel = take(timeoutMillis);
+        leased.set(channel);
+        return channel;
+    }
+
+    /**
+     * Returns the channel leased to the calling thread to the pool.
+     */
+    public void release() {
+        Channel channel = leased.get();
+        if (channel == null) {
+            return;
+        }
+        leased.remove();
+
+        boolean retire = retired.remove(channel);
+        synchronized (lock) {
+            if (!closed && !retire && channel.isOpen()) {
+                idle.push(channel);
+                lock.notifyAll();
+                return;
+            }
+        }
+        discard();
+        closeQuietly(channel);
+    }
+
+    /**
+     * Closes a channel when its thread releases it instead of handing it to the next thread.
+     */
+    public void retire(Channel channel) {
+        retired.add(channel);
+    }
+
+    /**
+     * Closes all idle channels. Channels still leased are closed along with their connection.
+     */
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            while (!idle.isEmpty()) {
+                closeQuietly(idle.pop());
+            }
+            created = 0;
+            retired.clear();
+            groups.clear();
+            threads = 0;
+            lock.notifyAll();
+        }
+        log.info("Channel pool closed:"
+                + "\n\t acquires: " + getAcquireCount()
+                + "\n\t waits: " + getWaitCount()
+                + "\n\t total wait (ms): " + getWaitTimeMillis()
+                + "\n\t max wait (ms): " + getMaxWaitTimeMillis()
+                + "\n\t replaced: " + getReplacedCount());
+    }
+
+    // the first lease of each thread group counts all its threads
+    private void checkSize(AbstractThreadGroup group) {
+        synchronized (lock) {
+            if (group != null && groups.add(group)) {
+                threads += group.getNumThreads();
+            }
+            if (threads > maxSize) {
+                throw new IllegalStateException("Channel pool size " + maxSize + " is smaller than the "
+                        + threads + " threads using it, each thread keeps its channel until it finishes");
+            }
+        }
+    }
+
+    private Channel take(long timeoutMillis) throws Exception {
+        synchronized (lock) {
+            long start = 0;
+            long deadline = 0;
+            while (true) {
+                if (closed) {
+                    throw new IOException("Channel pool is closed");
+                }
+                while (!idle.isEmpty()) {
+                    Channel channel = idle.pop();
+                    if (channel.isOpen()) {
+                        recordWait(start);
+                        return channel;
+                    }
+                    replaced.incrementAndGet();
+                    created--;
+                }
+                if (maxSize < 1 || created < maxSize) {
+                    created++;
+                    break;
+                }
+
+                long now = System.nanoTime();
+                if (start == 0) {
+                    start = now;
+                    deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                }
+                if (timeoutMillis <= 0) {
+                    lock.wait();
+                } else if (now - deadline >= 0) {
+                    recordWait(start);
+                    throw new TimeoutException("Timed out waiting " + timeoutMillis
+                            + "ms for one of " + maxSize + " pooled channels");
+                } else {
+                    TimeUnit.NANOSECONDS.timedWait(lock, deadline - now);
+                }
+            }
+            recordWait(start);
+        }
+
+        // open the channel outside the lock, it's a round trip to the broker
+        try {
+            return manager.createChannel();
+        } catch (Exception e) {
+            discard();
+            throw e;
+        }
+    }
+
+    private void discard() {
+        synchronized (lock) {
+            if (created > 0) {
+                created--;
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private void recordWait(long start) {
+        if (start == 0) {
+            return;
+        }
+        long waited = System.nanoTime() - start;
+        waits.incrementAndGet();
+        waitNanos.addAndGet(waited);
+        long max;
+        while (waited > (max = maxWaitNanos.get())) {
+            if (maxWaitNanos.compareAndSet(max, waited)) {
+                break;
+            }
+        }
+    }
+
+    private static void closeQuietly(Channel channel) {
+        try {
+            if (channel.isOpen()) {
+                channel.close();
+            }
+        } catch (Exception e) {
+            log.debug("Failed to close channel", e);
+        }
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public int getOpenCount() {
+        synchronized (lock) {
+            return created;
+        }
+    }
+
+    public int getIdleCount() {
+        synchronized (lock) {
+            return idle.size();
+        }
+    }
+
+    public long getAcquireCount() {
+        return acquires.get();
+    }
+
+    /**
+     * @return how many times a thread had to wait for a free channel
+     */
+    public long getWaitCount() {
+        return waits.get();
+    }
+
+    public long getWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.get());
+    }
+
+    public long getMaxWaitTimeMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWaitNanos.get());
+    }
+
+    /**
+     * @return how many dead channels were discarded and replaced
+     */
+    public long getReplacedCount() {
+        return replaced.get();
+    }
+}
@@ -0,0 +1,23 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * The channel pool of an {@link AMQPConnectionManager} as seen over JMX.
+ */
+public interface ChannelPoolMBean {
+
+    int getMaxSize();
+
+    int getOpenCount();
+
+    int getIdleCount();
+
+    long getAcquireCount();
+
+    long getWaitCount();
+
+    long getWaitTimeMillis();
+
+    long getMaxWaitTimeMillis();
+
+    long getReplacedCount();
+}
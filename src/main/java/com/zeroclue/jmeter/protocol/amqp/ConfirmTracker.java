@@ -0,0 +1,286 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.HdrHistogram.SingleWriterRecorder;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Tracks the publishes of a channel in confirm mode.
+ *
+ * The publishing thread registers each message before it is sent, blocking while the window of
+ * unconfirmed messages is full. Acks and nacks arrive on the connection's dispatch thread and
+ * release the window.
+ */
+public class ConfirmTracker implements ConfirmListener {
+
+    private final Channel channel;
+    private final int window;
+    private final SingleWriterRecorder latencies;
+    private final AMQPCounters[] counters;
+
+    // sequence number -> System.nanoTime() of the publish
+    private final ConcurrentSkipListMap<Long, Long> outstanding = new ConcurrentSkipListMap<Long, Long>();
+    private final Object lock = new Object();
+    private ShutdownListener shutdownListener;
+
+    // reset by begin(), for the sample in progress
+    private int acked;
+    private int nacked;
+    private int timedOut;
+    private int lost;
+
+    private final AtomicLong totalAcked = new AtomicLong();
+    private final AtomicLong totalNacked = new AtomicLong();
+    private final AtomicLong totalTimedOut = new AtomicLong();
+    private final AtomicLong totalLost = new AtomicLong();
+    private final AtomicLong confirmNanos = new AtomicLong();
+
+    /**
+     * @param latencies records the time from publish to confirm of each message, written only by
+     * the dispatch thread of the channel
+     * @param counters live counters of in-flight and confirmed messages, e.g. of the connection
+     * and of the sampler
+     */
+    public ConfirmTracker(Channel channel, int window, SingleWriterRecorder latencies, AMQPCounters... counters) {
+        this.channel = channel;
+        this.window = window;
+        this.latencies = latencies;
+        this.counters = counters;
+    }
+
+    /**
+     * Puts the channel in confirm mode and starts listening for acks and nacks.
+     */
+    public void attach() throws IOException {
+        channel.confirmSelect();
+        channel.addConfirmListener(this);
+        shutdownListener = new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException cause) {
+                lose();
+            }
+        };
+        channel.addShutdownListener(shutdownListener);
+    }
+
+    /**
+     * Stops listening for acks, nacks and the closing of the channel, so the confirms of another
+     * sampler on the channel don't count as this one's.
+     */
+    public void detach() {
+        channel.removeConfirmListener(this);
+        if (shutdownListener != null) {
+            channel.removeShutdownListener(shutdownListener);
+            shutdownListener = null;
+        }
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Starts counting acks, nacks and timeouts for a new sample.
+     */
+    public void begin() {
+        synchronized (lock) {
+            acked = 0;
+            nacked = 0;
+            timedOut = 0;
+            lost = 0;
+        }
+    }
+
+    /**
+     * Waits for room in the window for one more publish.
+     *
+     * @return false if the window didn't open up in time
+     */
+    public boolean awaitWindow(long timeoutMillis) throws InterruptedException {
+        return window <= 0 || awaitOutstanding(window - 1, timeoutMillis);
+    }
+
+    /**
+     * Registers the next publish on the channel. Must be called just before
+     * <code>basicPublish</code>.
+     *
+     * @param sentAtNanos the <code>System.nanoTime()</code> the confirm latency is measured from
+     */
+    public void register(long sentAtNanos) {
+        outstanding.put(channel.getNextPublishSeqNo(), sentAtNanos);
+        for (AMQPCounters c : counters) {
+            c.recordAwaitingConfirm();
+        }
+    }
+
+    /**
+     * Waits until every registered publish has been confirmed. Publishes still unconfirmed after
+     * the timeout are dropped and counted as timed out.
+     *
+     * @return true if every publish was confirmed in time
+     */
+    public boolean awaitConfirms(long timeoutMillis) throws InterruptedException {
+        if (awaitOutstanding(0, timeoutMillis)) {
+            return true;
+        }
+        synchronized (lock) {
+            int expired = outstanding.size();
+            outstanding.clear();
+            timedOut += expired;
+            totalTimedOut.addAndGet(expired);
+            for (AMQPCounters c : counters) {
+                c.recordConfirmTimedOut(expired);
+            }
+        }
+        return false;
+    }
+
+    /*
+     * The confirms of a closed channel never arrive, so its outstanding publishes are lost.
+     */
+    private void lose() {
+        synchronized (lock) {
+            int count = outstanding.size();
+            if (count == 0) {
+                return;
+            }
+            outstanding.clear();
+            lost += count;
+            totalLost.addAndGet(count);
+            for (AMQPCounters c : counters) {
+                c.recordLost(count);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    private boolean awaitOutstanding(int max, long timeoutMillis) throws InterruptedException {
+        synchronized (lock) {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (outstanding.size() > max) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, true);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        confirm(deliveryTag, multiple, false);
+    }
+
+    private void confirm(long deliveryTag, boolean multiple, boolean ack) {
+        long now = System.nanoTime();
+        int count = 0;
+        long latency = 0;
+        if (multiple) {
+            NavigableMap<Long, Long> confirmed = outstanding.headMap(deliveryTag, true);
+            for (Map.Entry<Long, Long> entry : confirmed.entrySet()) {
+                long nanos = now - entry.getValue();
+                latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+                latency += nanos;
+                count++;
+            }
+            confirmed.clear();
+        } else {
+            Long publishedAt = outstanding.remove(deliveryTag);
+            if (publishedAt != null) {
+                latency += now - publishedAt;
+                latencies.recordValue(TimeUnit.NANOSECONDS.toMicros(latency));
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+
+        confirmNanos.addAndGet(latency);
+        for (AMQPCounters c : counters) {
+            c.recordConfirmed(ack ? count : 0, ack ? 0 : count);
+        }
+        synchronized (lock) {
+            if (ack) {
+                acked += count;
+                totalAcked.addAndGet(count);
+            } else {
+                nacked += count;
+                totalNacked.addAndGet(count);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    public int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    public int getAckedCount() {
+        synchronized (lock) {
+            return acked;
+        }
+    }
+
+    public int getNackedCount() {
+        synchronized (lock) {
+            return nacked;
+        }
+    }
+
+    public int getTimedOutCount() {
+        synchronized (lock) {
+            return timedOut;
+        }
+    }
+
+    public int getLostCount() {
+        synchronized (lock) {
+            return lost;
+        }
+    }
+
+    public long getTotalAckedCount() {
+        return totalAcked.get();
+    }
+
+    public long getTotalNackedCount() {
+        return totalNacked.get();
+    }
+
+    public long getTotalTimedOutCount() {
+        return totalTimedOut.get();
+    }
+
+    public long getTotalLostCount() {
+        return totalLost.get();
+    }
+
+    /**
+     * @return the mean time from publish to ack or nack, in microseconds
+     */
+    public long getMeanConfirmMicros() {
+        long confirmed = totalAcked.get() + totalNacked.get();
+        if (confirmed == 0) {
+            return 0;
+        }
+        return TimeUnit.NANOSECONDS.toMicros(confirmNanos.get()) / confirmed;
+    }
+}
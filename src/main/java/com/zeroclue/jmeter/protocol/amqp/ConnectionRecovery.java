@@ -0,0 +1,113 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * Opens the connections of a manager again when the broker or the network closes them.
+ *
+ * Attempts are spaced by an exponential backoff, each waiting a random time between half and all
+ * of the current delay so that the clients of a restarted broker don't all come back at once. Once
+ * a connection is open again the topology declared by the samplers is declared on it, then the
+ * samplers waiting for it carry on.
+ */
+public class ConnectionRecovery {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private static final AtomicInteger THREADS = new AtomicInteger();
+
+    private final AMQPConnectionManager manager;
+    private final long initialDelay;
+    private final long maxDelay;
+    private final ExecutorService executor;
+
+    private volatile boolean stopped;
+
+    public ConnectionRecovery(AMQPConnectionManager manager, long initialDelayMillis, long maxDelayMillis) {
+        this.manager = manager;
+        this.initialDelay = Math.max(1, initialDelayMillis);
+        this.maxDelay = Math.max(initialDelay, maxDelayMillis);
+        this.executor = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "amqp-recovery-" + THREADS.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts recovering the connection of a shard, unless it is being recovered already.
+     */
+    public void start(final ConnectionShard shard, ShutdownSignalException cause) {
+        if (stopped || !shard.beginRecovery()) {
+            return;
+        }
+        log.warn("Connection " + shard.getIndex() + " lost, recovering: " + cause.getMessage());
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                recover(shard);
+            }
+        });
+    }
+
+    private void recover(ConnectionShard shard) {
+        long delay = initialDelay;
+        int attempts = 0;
+        boolean recovered = false;
+        try {
+            while (!stopped) {
+                Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+                attempts++;
+                try {
+                    Connection connection = manager.reopen(shard);
+                    if (connection == null) {
+                        break; // the test ended
+                    }
+                    Channel channel = connection.createChannel();
+                    int declared;
+                    try {
+                        declared = manager.getTopology().redeclare(channel);
+                    } finally {
+                        if (channel.isOpen()) {
+                            channel.close();
+                        }
+                    }
+                    recovered = true;
+                    log.info("Connection " + shard.getIndex() + " recovered after " + attempts
+                            + " attempts, " + declared + " declarations redone");
+                    break;
+                } catch (Exception e) {
+                    log.warn("Connection " + shard.getIndex() + " recovery attempt " + attempts
+                            + " failed, retrying in up to " + Math.min(delay * 2, maxDelay) + " ms: " + e);
+                    delay = Math.min(delay * 2, maxDelay);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            shard.endRecovery(recovered);
+        }
+    }
+
+    /**
+     * Gives up any recovery in progress, the samplers waiting for it fail.
+     */
+    public void stop() {
+        stopped = true;
+        executor.shutdownNow();
+    }
+}
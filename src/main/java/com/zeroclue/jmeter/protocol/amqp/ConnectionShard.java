@@ -0,0 +1,318 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+/**
+ * One of the connections opened by an {@link AMQPConnectionManager}, along with the number of
+ * channels open on it and its throughput counters.
+ *
+ * With a connection per thread, a single shard stands for all of them: it is open while any of
+ * them is, and counts their traffic, the time they were blocked and their shared dispatch pool.
+ */
+public class ConnectionShard extends AMQPCounters implements ConnectionShardMBean {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final int index;
+    private final boolean threadConnection; // one JMeter thread's own, sharing its dispatch pool
+    private final ConnectionShard aggregate; // counting a thread connection's blocked time, or this
+
+    private Connection connection; // guarded by this
+    private DispatchExecutor pool; // guarded by this
+    private long openedAt; // guarded by this
+    private Collection<ConnectionShard> threadConnections; // guarded by this, those this one stands for
+
+    private final AtomicInteger openChannels = new AtomicInteger();
+    private final AtomicLong reconnects = new AtomicLong();
+    // not this, which the connection's thread must not wait for while it is being closed
+    private final Object blockedLock = new Object();
+    private boolean blocked; // guarded by blockedLock
+    private int blockedConnections; // guarded by blockedLock, of those counted by this shard
+    private volatile long blockedSince; // System.nanoTime() when the broker blocked a connection, 0 if it didn't
+
+    private long recoveringSince; // guarded by this, System.nanoTime() when the connection was lost, 0 if it wasn't
+    private final AtomicLong recoveries = new AtomicLong();
+    private final AtomicLong recoveryNanos = new AtomicLong();
+    private volatile long lastRecoveryNanos;
+
+    public ConnectionShard(int index) {
+        this(index, null);
+    }
+
+    /**
+     * @param aggregate the shard standing for the connections of all threads if this is the
+     * connection of a single JMeter thread, whose dispatch pool is shared with the connections of
+     * other threads and isn't shut down along with it
+     */
+    public ConnectionShard(int index, ConnectionShard aggregate) {
+        this.index = index;
+        this.threadConnection = aggregate != null;
+        this.aggregate = aggregate != null ? aggregate : this;
+    }
+
+    @Override
+    public int getIndex() {
+        return index;
+    }
+
+    public synchronized Connection getConnection() {
+        return connection;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        if (threadConnections != null) {
+            for (ConnectionShard shard : threadConnections) {
+                if (shard.isOpen()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return connection != null && connection.isOpen();
+    }
+
+    /**
+     * Makes this shard stand for the connections of all threads, which dispatch on a shared pool.
+     */
+    public synchronized void aggregate(Collection<ConnectionShard> threadConnections, DispatchExecutor pool) {
+        this.threadConnections = threadConnections;
+        this.pool = pool;
+        if (openedAt == 0) {
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Replaces the connection of this shard, e.g. when the previous one was closed.
+     */
+    public synchronized void setConnection(Connection connection, DispatchExecutor pool) {
+        if (this.pool != null && this.pool != pool && !threadConnection) {
+            this.pool.shutdown();
+        }
+        if (this.connection != null && this.connection != connection) {
+            reconnects.incrementAndGet();
+        }
+        this.connection = connection;
+        this.pool = pool;
+        setBlocked(false); // the previous connection may have been lost while blocked
+        connection.addBlockedListener(new BlockedListener() {
+            @Override
+            public void handleBlocked(String reason) {
+                log.warn("Connection " + index + " blocked by the broker: " + reason);
+                setBlocked(true);
+            }
+
+            @Override
+            public void handleUnblocked() {
+                setBlocked(false);
+                log.info("Connection " + index + " unblocked");
+            }
+        });
+        if (openedAt == 0) {
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    public Channel createChannel(Connection connection) throws IOException {
+        Channel channel = connection.createChannel();
+        openChannels.incrementAndGet();
+        channel.addShutdownListener(new ShutdownListener() {
+            @Override
+            public void shutdownCompleted(ShutdownSignalException cause) {
+                openChannels.decrementAndGet();
+            }
+        });
+        return channel;
+    }
+
+    public synchronized void close() {
+        try {
+            if (connection != null && connection.isOpen()) {
+                connection.close();
+            }
+        } catch (IOException e) {
+            log.error("Failed to close connection " + index, e);
+        }
+        setBlocked(false);
+        if (threadConnection) {
+            log.debug("Thread connection " + index + " closed");
+            return;
+        }
+        if (pool != null) {
+            pool.shutdown();
+        }
+        log.info("Connection " + index + " closed:"
+                + "\n\t published: " + getPublishedCount() + " (" + getPublishedBytes() + " bytes)"
+                + "\n\t delivered: " + getDeliveredCount() + " (" + getDeliveredBytes() + " bytes)"
+                + "\n\t publish rate (msg/s): " + rate(getPublishedCount())
+                + "\n\t delivery rate (msg/s): " + rate(getDeliveredCount())
+                + "\n\t recovered: " + getRecoveryCount() + " times in " + getRecoveryMillis() + " ms, "
+                + getLostCount() + " publishes lost"
+                + (pool == null ? "" : "\n\t dispatch (" + pool + ") wait: "
+                        + LatencyHistograms.summary(pool.getDispatchLatency())));
+    }
+
+    private void setBlocked(boolean blocked) {
+        synchronized (blockedLock) {
+            if (this.blocked == blocked) {
+                return;
+            }
+            this.blocked = blocked;
+        }
+        aggregate.countBlocked(blocked);
+    }
+
+    /*
+     * Blocked time is counted while any of the connections is blocked, not once per connection.
+     */
+    private void countBlocked(boolean blocked) {
+        synchronized (blockedLock) {
+            if (blocked) {
+                if (blockedConnections++ == 0) {
+                    long now = System.nanoTime();
+                    blockedSince = now == 0 ? 1 : now;
+                }
+            } else if (--blockedConnections == 0) {
+                long since = blockedSince;
+                blockedSince = 0;
+                if (since != 0) {
+                    recordBlocked(System.nanoTime() - since);
+                }
+            }
+        }
+    }
+
+    /**
+     * Marks the connection as lost, until {@link #endRecovery(boolean)}.
+     *
+     * @return false if it is being recovered already
+     */
+    public synchronized boolean beginRecovery() {
+        if (recoveringSince != 0) {
+            return false;
+        }
+        long now = System.nanoTime();
+        recoveringSince = now == 0 ? 1 : now;
+        return true;
+    }
+
+    /**
+     * Wakes up the threads waiting for the connection to be recovered.
+     *
+     * @param recovered false if recovery was given up, e.g. because the test ended
+     */
+    public synchronized void endRecovery(boolean recovered) {
+        if (recoveringSince == 0) {
+            return;
+        }
+        long elapsed = System.nanoTime() - recoveringSince;
+        recoveringSince = 0;
+        if (recovered) {
+            recoveries.incrementAndGet();
+            recoveryNanos.addAndGet(elapsed);
+            lastRecoveryNanos = elapsed;
+        }
+        notifyAll();
+    }
+
+    /**
+     * Waits for the connection to be recovered, if it is being recovered.
+     *
+     * @return false if it still wasn't after the timeout
+     */
+    public synchronized boolean awaitRecovery(long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (recoveringSince != 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isRecovering() {
+        return recoveringSince != 0;
+    }
+
+    @Override
+    public long getRecoveryCount() {
+        return recoveries.get();
+    }
+
+    @Override
+    public long getRecoveryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(recoveryNanos.get());
+    }
+
+    @Override
+    public long getLastRecoveryMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(lastRecoveryNanos);
+    }
+
+    @Override
+    public int getOpenChannelCount() {
+        return Math.max(0, openChannels.get());
+    }
+
+    @Override
+    public long getBlockedMillis() {
+        long since = blockedSince;
+        long ongoing = since == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - since);
+        return super.getBlockedMillis() + ongoing;
+    }
+
+    @Override
+    public synchronized long getDispatchQueueDepth() {
+        return pool == null ? 0 : pool.getQueueDepth();
+    }
+
+    @Override
+    public synchronized long getDispatchedCount() {
+        return pool == null ? 0 : pool.getDispatchedCount();
+    }
+
+    @Override
+    public synchronized double getDispatchLatencyMeanMicros() {
+        return pool == null ? 0 : pool.getDispatchLatency().getMean();
+    }
+
+    @Override
+    public synchronized long getDispatchLatencyP99Micros() {
+        return pool == null ? 0 : pool.getDispatchLatency().getValueAtPercentile(99);
+    }
+
+    @Override
+    public synchronized long getDispatchLatencyMaxMicros() {
+        return pool == null ? 0 : pool.getDispatchLatency().getMaxValue();
+    }
+
+    @Override
+    public long getReconnectCount() {
+        return reconnects.get();
+    }
+
+    private synchronized long rate(long count) {
+        long elapsed = System.currentTimeMillis() - openedAt;
+        if (openedAt == 0 || elapsed < 1) {
+            return 0;
+        }
+        return count * 1000 / elapsed;
+    }
+}
@@ -0,0 +1,49 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * A connection of an {@link AMQPConnectionManager} as seen over JMX.
+ */
+public interface ConnectionShardMBean extends AMQPCountersMBean {
+
+    int getIndex();
+
+    boolean isOpen();
+
+    int getOpenChannelCount();
+
+    /**
+     * @return the number of times the connection was opened again after closing
+     */
+    long getReconnectCount();
+
+    /**
+     * @return true while the connection is lost and being opened again
+     */
+    boolean isRecovering();
+
+    /**
+     * @return the number of times the connection was recovered after the broker or the network
+     * closed it
+     */
+    long getRecoveryCount();
+
+    /**
+     * @return the time spent recovering the connection, from losing it to redeclaring its topology
+     */
+    long getRecoveryMillis();
+
+    long getLastRecoveryMillis();
+
+    /**
+     * @return the number of deliveries and other consumer callbacks waiting for a dispatch thread
+     */
+    long getDispatchQueueDepth();
+
+    long getDispatchedCount();
+
+    double getDispatchLatencyMeanMicros();
+
+    long getDispatchLatencyP99Micros();
+
+    long getDispatchLatencyMaxMicros();
+}
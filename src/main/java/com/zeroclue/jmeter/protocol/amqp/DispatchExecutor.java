@@ -0,0 +1,134 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.lang.reflect.Method;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The executor a connection dispatches deliveries and other consumer callbacks on, measuring how
+ * many dispatches wait for a thread and how long they wait.
+ *
+ * The client runs the callbacks of one channel one at a time in order whatever the executor, so
+ * more threads only let the consumers of different channels run in parallel.
+ */
+public class DispatchExecutor extends AbstractExecutorService {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String FIXED = "fixed";
+    public static final String WORK_STEALING = "work-stealing";
+    public static final String VIRTUAL = "virtual threads";
+
+    private final ExecutorService delegate;
+    private final String description;
+
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final Histogram waits = new ConcurrentHistogram(3); // microseconds
+
+    public DispatchExecutor(ExecutorService delegate, String description) {
+        this.delegate = delegate;
+        this.description = description;
+    }
+
+    /**
+     * @param threads the number of threads of a fixed pool or the parallelism of a work-stealing
+     * one, ignored for virtual threads
+     */
+    public static DispatchExecutor create(String type, int threads) {
+        if (VIRTUAL.equals(type)) {
+            ExecutorService virtual = newVirtualThreadExecutor();
+            if (virtual != null) {
+                return new DispatchExecutor(virtual, VIRTUAL);
+            }
+            log.warn("Virtual threads need Java 21 or later, dispatching on " + threads + " fixed threads instead");
+        } else if (WORK_STEALING.equals(type)) {
+            // FIFO scheduling, consumers expect callbacks in submission order
+            return new DispatchExecutor(new ForkJoinPool(threads,
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true), WORK_STEALING + " x" + threads);
+        }
+        return new DispatchExecutor(Executors.newFixedThreadPool(threads), FIXED + " x" + threads);
+    }
+
+    private static ExecutorService newVirtualThreadExecutor() {
+        try {
+            // looked up at run time, the plugin is built for older JVMs
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        final long queuedAt = System.nanoTime();
+        submitted.incrementAndGet();
+        delegate.execute(new Runnable() {
+            @Override
+            public void run() {
+                started.incrementAndGet();
+                waits.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - queuedAt)));
+                command.run();
+            }
+        });
+    }
+
+    /**
+     * @return the number of dispatches waiting for a thread
+     */
+    public long getQueueDepth() {
+        return Math.max(0, submitted.get() - started.get());
+    }
+
+    public long getDispatchedCount() {
+        return started.get();
+    }
+
+    /**
+     * @return the time from handing a dispatch to the executor to it starting to run
+     */
+    public Histogram getDispatchLatency() {
+        return waits;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,162 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.SingleWriterRecorder;
+
+/**
+ * Per-message latency histograms of the AMQP samplers, in microseconds.
+ *
+ * Every sampler clone records into recorders of its own, so recording never contends with other
+ * threads and needs no lock. The recorders are drained into running totals whenever the
+ * {@link TimeSeriesReporter} takes a sample of the latest interval, and when the test ends the
+ * totals of each sampler are written to the file named by the <code>amqp.latency.file</code>
+ * JMeter property.
+ */
+public final class LatencyHistograms {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String PUBLISH = "publish";
+    public static final String CONFIRM = "confirm";
+    public static final String DELIVERY = "delivery";
+    public static final String ROUND_TRIP = "round-trip";
+    public static final String TCP_CONNECT = "tcp-connect";
+    public static final String TLS_HANDSHAKE = "tls-handshake";
+    public static final String AMQP_HANDSHAKE = "amqp-handshake";
+    public static final String CHANNEL_OPEN = "channel-open";
+
+    public static final String FILE_PROPERTY = "amqp.latency.file";
+    public static final String DEFAULT_FILE = "amqp-latency.csv";
+
+    static final int SIGNIFICANT_DIGITS = 3;
+
+    // "sampler\tmetric" -> the recorders of every thread
+    private static final ConcurrentMap<String, Queue<SingleWriterRecorder>> RECORDERS =
+            new ConcurrentHashMap<String, Queue<SingleWriterRecorder>>();
+
+    // "sampler\tmetric" -> everything drained from its recorders so far, guarded by the class
+    private static final Map<String, Histogram> TOTALS = new HashMap<String, Histogram>();
+
+    private static final AtomicBoolean reported = new AtomicBoolean();
+
+    private LatencyHistograms() {
+    }
+
+    /**
+     * Creates a recorder for one thread of a sampler. Only one thread may record into it at a time.
+     */
+    public static SingleWriterRecorder newRecorder(String sampler, String metric) {
+        String key = sampler + "\t" + metric;
+        Queue<SingleWriterRecorder> recorders = RECORDERS.get(key);
+        if (recorders == null) {
+            recorders = new ConcurrentLinkedQueue<SingleWriterRecorder>();
+            Queue<SingleWriterRecorder> existing = RECORDERS.putIfAbsent(key, recorders);
+            if (existing != null) {
+                recorders = existing;
+            }
+        }
+        SingleWriterRecorder recorder = new SingleWriterRecorder(SIGNIFICANT_DIGITS);
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * Forgets the recorders of the previous test.
+     */
+    public static synchronized void reset() {
+        RECORDERS.clear();
+        TOTALS.clear();
+        reported.set(false);
+    }
+
+    /**
+     * Takes what every recorder recorded since the previous call and adds it to the totals.
+     *
+     * @return the latencies of the interval by "sampler\tmetric", without empty ones
+     */
+    public static synchronized Map<String, Histogram> drain() {
+        Map<String, Histogram> intervals = new TreeMap<String, Histogram>();
+        for (Map.Entry<String, Queue<SingleWriterRecorder>> entry : RECORDERS.entrySet()) {
+            Histogram interval = new Histogram(SIGNIFICANT_DIGITS);
+            for (SingleWriterRecorder recorder : entry.getValue()) {
+                interval.add(recorder.getIntervalHistogram());
+            }
+            if (interval.getTotalCount() == 0) {
+                continue;
+            }
+            intervals.put(entry.getKey(), interval);
+            Histogram total = TOTALS.get(entry.getKey());
+            if (total == null) {
+                total = new Histogram(SIGNIFICANT_DIGITS);
+                TOTALS.put(entry.getKey(), total);
+            }
+            total.add(interval);
+        }
+        return intervals;
+    }
+
+    /**
+     * Merges the recorders of every thread and writes the report, once per test however many
+     * samplers call it.
+     */
+    public static void report() {
+        if (!reported.compareAndSet(false, true)) {
+            return;
+        }
+        Map<String, Histogram> merged;
+        synchronized (LatencyHistograms.class) {
+            drain();
+            merged = new TreeMap<String, Histogram>(TOTALS);
+        }
+        if (merged.isEmpty()) {
+            return;
+        }
+
+        String file = JMeterUtils.getPropDefault(FILE_PROPERTY, DEFAULT_FILE);
+        PrintWriter out = null;
+        try {
+            out = new PrintWriter(new FileWriter(file));
+            out.println("sampler,metric,count,mean_us,p50_us,p99_us,p99.9_us,max_us");
+            for (Map.Entry<String, Histogram> entry : merged.entrySet()) {
+                Histogram h = entry.getValue();
+                log.info(entry.getKey().replace('\t', ' ') + " latency: " + summary(h));
+                out.println(entry.getKey().replace('\t', ',') + "," + h.getTotalCount()
+                        + "," + (long) h.getMean()
+                        + "," + h.getValueAtPercentile(50)
+                        + "," + h.getValueAtPercentile(99)
+                        + "," + h.getValueAtPercentile(99.9)
+                        + "," + h.getMaxValue());
+            }
+            log.info("Wrote AMQP latency percentiles to " + file);
+        } catch (IOException e) {
+            log.error("Failed to write AMQP latency percentiles to " + file, e);
+        } finally {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+
+    public static String summary(Histogram histogram) {
+        return "count=" + histogram.getTotalCount()
+                + " p50=" + histogram.getValueAtPercentile(50) + "us"
+                + " p99=" + histogram.getValueAtPercentile(99) + "us"
+                + " p99.9=" + histogram.getValueAtPercentile(99.9) + "us"
+                + " max=" + histogram.getMaxValue() + "us";
+    }
+}
@@ -0,0 +1,345 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A file of recorded messages, memory-mapped so that captures far larger than the heap can be
+ * replayed.
+ *
+ * Records are either separated by newlines, blank lines being skipped, or each preceded by its
+ * length as a 4 byte big-endian integer. The file is indexed once when the test starts by scanning
+ * the mapping, keeping only where each record starts as a 4 byte offset into its segment, off the
+ * heap; the length is found in the mapping when the record is read. A {@link Reader} then only
+ * copies the bytes of a record out of the mapping into the array that is published, and reuses
+ * that array for later records of the same length.
+ *
+ * Threads either share one cursor, so each record is sent once per pass over the file whatever
+ * thread sends it, or each replay a partition of their own.
+ */
+public class MessageFile {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String NEWLINE = "newline";
+    public static final String LENGTH_PREFIXED = "length-prefixed";
+
+    // a mapping can't exceed 2GB, larger files are mapped in segments ending on record boundaries
+    private static final long MAX_SEGMENT = Integer.MAX_VALUE;
+
+    private static final int INITIAL_RECORDS = 1024;
+
+    private static final ConcurrentMap<String, MessageFile> FILES = new ConcurrentHashMap<String, MessageFile>();
+
+    private final String path;
+    private final boolean lengthPrefixed;
+    private final int count;
+    private final Segment[] segments;
+    private final int[] segmentFirstRecords;
+    private final AtomicLong cursor = new AtomicLong();
+
+    private MessageFile(String path, String format) throws IOException {
+        this.path = path;
+        this.lengthPrefixed = LENGTH_PREFIXED.equals(format);
+        RandomAccessFile file = new RandomAccessFile(Paths.get(path).toAbsolutePath().toFile(), "r");
+        try {
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            List<Segment> mapped = new ArrayList<Segment>();
+            long records = 0;
+            long position = 0;
+            while (position < size) {
+                Segment segment = lengthPrefixed ? indexLengthPrefixed(channel, position, size)
+                        : indexLines(channel, position, size);
+                if (segment.starts.count > 0) {
+                    mapped.add(segment);
+                }
+                records += segment.starts.count;
+                position = segment.next;
+            }
+            if (records == 0) {
+                throw new IllegalArgumentException("No messages in " + path);
+            }
+            if (records > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("More than " + Integer.MAX_VALUE + " messages in " + path);
+            }
+            count = (int) records;
+            segments = mapped.toArray(new Segment[mapped.size()]);
+            segmentFirstRecords = new int[segments.length];
+            int first = 0;
+            for (int s = 0; s < segments.length; s++) {
+                segmentFirstRecords[s] = first;
+                first += segments[s].starts.count;
+            }
+        } finally {
+            file.close(); // the mappings stay valid
+        }
+    }
+
+    /**
+     * @return the indexed file shared by every thread, indexed by the first call of the test
+     */
+    public static MessageFile open(String path, String format) throws IOException {
+        String key = format + "\t" + path;
+        MessageFile messageFile = FILES.get(key);
+        if (messageFile != null) {
+            return messageFile;
+        }
+        synchronized (FILES) {
+            messageFile = FILES.get(key);
+            if (messageFile == null) {
+                long started = System.currentTimeMillis();
+                messageFile = new MessageFile(path, format);
+                FILES.put(key, messageFile);
+                log.info("Indexed " + messageFile.count + " messages of " + path + " in "
+                        + messageFile.segments.length + " mapped segments, "
+                        + (System.currentTimeMillis() - started) + " ms");
+            }
+            return messageFile;
+        }
+    }
+
+    /**
+     * Forgets the files of the previous test. The mappings and indexes are released once garbage
+     * collected.
+     */
+    public static void reset() {
+        FILES.clear();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return a reader taking successive records from the cursor shared by all readers of the file
+     */
+    public Reader sharedReader() {
+        return new Reader(-1, 0);
+    }
+
+    /**
+     * @return a reader replaying its own share of the records, e.g. one per thread of a group
+     */
+    public Reader partitionReader(int partition, int partitions) {
+        int from = (int) ((long) count * partition / partitions);
+        int to = (int) ((long) count * (partition + 1) / partitions);
+        if (from >= to) {
+            // more partitions than records, share them out round-robin
+            from = partition % count;
+            to = from + 1;
+        }
+        return new Reader(from, to);
+    }
+
+    /**
+     * Reads records for one thread. Not thread safe.
+     */
+    public class Reader {
+
+        private final ByteBuffer[] views;
+        private final int from;
+        private final int to;
+        private int next;
+        private final BodyArrays bodies = new BodyArrays();
+
+        private Reader(int from, int to) {
+            this.from = from;
+            this.to = to;
+            this.next = from;
+            // positioning a buffer isn't thread safe, so every reader has views of its own
+            views = new ByteBuffer[segments.length];
+            for (int s = 0; s < segments.length; s++) {
+                views[s] = segments[s].buffer.duplicate();
+            }
+        }
+
+        /**
+         * @return the next record, in an array that is reused by later calls
+         */
+        public byte[] next() {
+            int record;
+            if (from < 0) {
+                record = (int) (cursor.getAndIncrement() % count);
+            } else {
+                record = next;
+                next = next + 1 < to ? next + 1 : from;
+            }
+
+            int s = segment(record);
+            ByteBuffer view = views[s];
+            int start = segments[s].starts.get(record - segmentFirstRecords[s]);
+            int length = lengthPrefixed ? view.getInt(start - 4) : lineLength(view, start, lineEnd(view, start));
+
+            byte[] body = bodies.get(length);
+            view.position(start);
+            view.get(body);
+            return body;
+        }
+
+        private int segment(int record) {
+            if (views.length == 1) {
+                return 0;
+            }
+            int s = Arrays.binarySearch(segmentFirstRecords, record);
+            return s >= 0 ? s : -s - 2;
+        }
+    }
+
+    /*
+     * Maps up to 2GB from an offset and indexes the lines starting in it. The segment ends after
+     * the last line ending in it, the next one starts there.
+     */
+    private static Segment indexLines(FileChannel channel, long from, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(MAX_SEGMENT, size - from));
+        Offsets starts = new Offsets();
+        int limit = buffer.limit();
+        int start = 0;
+        int end = 0;
+        for (int i = 0; i < limit && !starts.isFull(); i++) {
+            if (buffer.get(i) == '\n') {
+                if (lineLength(buffer, start, i) > 0) {
+                    starts.add(start);
+                }
+                start = i + 1;
+                end = start;
+            }
+        }
+        if (from + limit == size && end < limit && !starts.isFull()) {
+            // the last line of the file has no newline
+            if (lineLength(buffer, start, limit) > 0) {
+                starts.add(start);
+            }
+            end = limit;
+        }
+        if (end == 0) {
+            throw new IOException("Message longer than " + MAX_SEGMENT + " bytes at offset " + from);
+        }
+        buffer.limit(end);
+        return new Segment(buffer, starts.trim(), from + end);
+    }
+
+    private static Segment indexLengthPrefixed(FileChannel channel, long from, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, Math.min(MAX_SEGMENT, size - from));
+        Offsets starts = new Offsets();
+        int limit = buffer.limit();
+        int position = 0;
+        while (position < limit && !starts.isFull()) {
+            if (limit - position < 4) {
+                if (from + limit == size) {
+                    throw new IOException("Truncated length prefix at offset " + (from + position));
+                }
+                break; // the prefix continues in the next segment
+            }
+            int length = buffer.getInt(position);
+            long end = (long) position + 4 + length;
+            if (length < 0 || from + end > size) {
+                throw new IOException("Bad message length " + length + " at offset " + (from + position));
+            }
+            if (end > limit) {
+                break; // the message continues in the next segment
+            }
+            starts.add(position + 4);
+            position = (int) end;
+        }
+        if (position == 0) {
+            throw new IOException("Message longer than " + MAX_SEGMENT + " bytes at offset " + from);
+        }
+        buffer.limit(position);
+        return new Segment(buffer, starts.trim(), from + position);
+    }
+
+    private static int lineEnd(ByteBuffer buffer, int start) {
+        int limit = buffer.limit();
+        int i = start;
+        while (i < limit && buffer.get(i) != '\n') {
+            i++;
+        }
+        return i;
+    }
+
+    // without the \r of a \r\n line ending
+    private static int lineLength(ByteBuffer buffer, int start, int end) {
+        if (end > start && buffer.get(end - 1) == '\r') {
+            end--;
+        }
+        return end - start;
+    }
+
+    private static final class Segment {
+        final MappedByteBuffer buffer; // up to the end of the segment's last record
+        final Offsets starts;
+        final long next; // the offset in the file of the next segment
+
+        Segment(MappedByteBuffer buffer, Offsets starts, long next) {
+            this.buffer = buffer;
+            this.starts = starts;
+            this.next = next;
+        }
+    }
+
+    /*
+     * The start of each record in a segment, in direct memory so that files of hundreds of
+     * millions of records don't weigh on the heap.
+     */
+    private static final class Offsets {
+        private static final int MAX_COUNT = Integer.MAX_VALUE / 4;
+
+        private ByteBuffer offsets = allocate(INITIAL_RECORDS);
+        int count;
+
+        boolean isFull() {
+            return count == MAX_COUNT;
+        }
+
+        void add(int offset) {
+            if (count == offsets.capacity() / 4) {
+                offsets = copy((int) Math.min(MAX_COUNT, 2L * count));
+            }
+            offsets.putInt(count * 4, offset);
+            count++;
+        }
+
+        int get(int index) {
+            return offsets.getInt(index * 4);
+        }
+
+        Offsets trim() {
+            if (count < offsets.capacity() / 4) {
+                offsets = copy(count);
+            }
+            return this;
+        }
+
+        private ByteBuffer copy(int capacity) {
+            ByteBuffer copy = allocate(capacity);
+            ByteBuffer from = offsets.duplicate();
+            from.position(0);
+            from.limit(count * 4);
+            copy.put(from);
+            return copy;
+        }
+
+        private static ByteBuffer allocate(int capacity) {
+            return ByteBuffer.allocateDirect(Math.max(1, capacity) * 4).order(ByteOrder.nativeOrder());
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jmeter.threads.JMeterVariables;
+
+/**
+ * A message body parsed once into literal bytes and placeholders, rendered anew for every message.
+ *
+ * Placeholders use double braces, so JMeter leaves them alone when it evaluates the functions and
+ * variables of the message field once per sample:
+ * <ul>
+ * <li><code>{{seq}}</code> a sequence number shared by all threads of the publisher</li>
+ * <li><code>{{timestamp}}</code> the time of rendering, in milliseconds since the epoch</li>
+ * <li><code>{{random}}</code> or <code>{{random:min:max}}</code> a random int, bounds included</li>
+ * <li><code>{{thread}}</code> the number of the JMeter thread</li>
+ * <li><code>{{uuid}}</code> a random type 4 UUID</li>
+ * <li><code>{{var:name}}</code> the current value of a JMeter variable</li>
+ * </ul>
+ *
+ * Numbers and UUIDs are written straight into a reused buffer, so rendering allocates nothing but
+ * the encoding of variable values that changed since the previous message.
+ *
+ * Not thread safe, every publishing thread compiles its own.
+ */
+public class MessageTemplate {
+
+    private static final int LITERAL = 0;
+    private static final int SEQUENCE = 1;
+    private static final int TIMESTAMP = 2;
+    private static final int RANDOM = 3;
+    private static final int THREAD = 4;
+    private static final int UUID = 5;
+    private static final int VARIABLE = 6;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(Charset.forName("US-ASCII"));
+
+    private static final ConcurrentMap<String, AtomicLong> SEQUENCES = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final String text;
+    private final Charset charset;
+    private final int[] kinds;
+    private final byte[][] literals;
+    private final String[] variables;
+    private final int[] minimums;
+    private final long[] ranges;
+
+    private final AtomicLong sequence;
+    private final long threadNum;
+    private final Random random = new Random();
+    private final BodyArrays bodies = new BodyArrays();
+    private byte[] buffer = new byte[256];
+    private int length;
+
+    // the last value of each variable placeholder, and its encoding
+    private final String[] values;
+    private final byte[][] encodedValues;
+
+    /**
+     * @param sequence counter of the <code>{{seq}}</code> placeholder, see {@link #sequence(String)}
+     */
+    public MessageTemplate(String text, Charset charset, AtomicLong sequence, int threadNum) {
+        this.text = text;
+        this.charset = charset;
+        this.sequence = sequence;
+        this.threadNum = threadNum;
+
+        List<Integer> kinds = new ArrayList<Integer>();
+        List<byte[]> literals = new ArrayList<byte[]>();
+        List<String> variables = new ArrayList<String>();
+        List<int[]> bounds = new ArrayList<int[]>();
+        int position = 0;
+        while (position < text.length()) {
+            int open = text.indexOf("{{", position);
+            int close = open < 0 ? -1 : text.indexOf("}}", open + 2);
+            if (close < 0) {
+                open = text.length();
+            }
+            if (open > position) {
+                kinds.add(LITERAL);
+                literals.add(text.substring(position, open).getBytes(charset));
+                variables.add(null);
+                bounds.add(null);
+            }
+            if (close < 0) {
+                break;
+            }
+            String placeholder = text.substring(open + 2, close).trim();
+            literals.add(null);
+            variables.add(placeholder.startsWith("var:") ? placeholder.substring(4) : null);
+            bounds.add(null);
+            if (placeholder.equals("seq")) {
+                kinds.add(SEQUENCE);
+            } else if (placeholder.equals("timestamp")) {
+                kinds.add(TIMESTAMP);
+            } else if (placeholder.equals("random")) {
+                kinds.add(RANDOM);
+                bounds.set(bounds.size() - 1, new int[] { 0, Integer.MAX_VALUE });
+            } else if (placeholder.startsWith("random:")) {
+                kinds.add(RANDOM);
+                bounds.set(bounds.size() - 1, parseBounds(placeholder));
+            } else if (placeholder.equals("thread")) {
+                kinds.add(THREAD);
+            } else if (placeholder.equals("uuid")) {
+                kinds.add(UUID);
+            } else if (placeholder.startsWith("var:")) {
+                kinds.add(VARIABLE);
+            } else {
+                throw new IllegalArgumentException("Unknown message template placeholder {{" + placeholder + "}}");
+            }
+            position = close + 2;
+        }
+
+        int size = kinds.size();
+        this.kinds = new int[size];
+        this.literals = literals.toArray(new byte[size][]);
+        this.variables = variables.toArray(new String[size]);
+        this.minimums = new int[size];
+        this.ranges = new long[size];
+        for (int i = 0; i < size; i++) {
+            this.kinds[i] = kinds.get(i);
+            int[] minMax = bounds.get(i);
+            if (minMax != null) {
+                minimums[i] = minMax[0];
+                ranges[i] = (long) minMax[1] - minMax[0];
+            }
+        }
+        this.values = new String[size];
+        this.encodedValues = new byte[size][];
+    }
+
+    /**
+     * @return the <code>{{seq}}</code> counter shared by every thread of a sampler, keyed by its
+     * instance key
+     */
+    public static AtomicLong sequence(String sampler) {
+        AtomicLong sequence = SEQUENCES.get(sampler);
+        if (sequence == null) {
+            sequence = new AtomicLong();
+            AtomicLong existing = SEQUENCES.putIfAbsent(sampler, sequence);
+            if (existing != null) {
+                sequence = existing;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Restarts the sequences of the previous test.
+     */
+    public static void reset() {
+        SEQUENCES.clear();
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return the next message, in an array that is reused by later calls
+     */
+    public byte[] render(JMeterVariables vars) {
+        length = 0;
+        for (int i = 0; i < kinds.length; i++) {
+            switch (kinds[i]) {
+            case LITERAL:
+                append(literals[i]);
+                break;
+            case SEQUENCE:
+                appendNumber(sequence.incrementAndGet());
+                break;
+            case TIMESTAMP:
+                appendNumber(System.currentTimeMillis());
+                break;
+            case RANDOM:
+                // the range is at most 2^32 - 1, so nextDouble spreads over all of it
+                appendNumber(minimums[i] + (long) (random.nextDouble() * (ranges[i] + 1)));
+                break;
+            case THREAD:
+                appendNumber(threadNum);
+                break;
+            case UUID:
+                appendUuid(random.nextLong(), random.nextLong());
+                break;
+            default:
+                append(encodeVariable(i, vars == null ? null : vars.get(variables[i])));
+            }
+        }
+        byte[] body = bodies.get(length);
+        System.arraycopy(buffer, 0, body, 0, length);
+        return body;
+    }
+
+    private byte[] encodeVariable(int i, String value) {
+        if (value == null) {
+            value = "";
+        }
+        if (!value.equals(values[i])) {
+            values[i] = value;
+            encodedValues[i] = value.getBytes(charset);
+        }
+        return encodedValues[i];
+    }
+
+    private void append(byte[] bytes) {
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, length, bytes.length);
+        length += bytes.length;
+    }
+
+    private void appendNumber(long value) {
+        ensureCapacity(20);
+        if (value < 0) {
+            buffer[length++] = '-';
+            value = -value;
+        }
+        int start = length;
+        do {
+            buffer[length++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        // digits were written least significant first
+        for (int left = start, right = length - 1; left < right; left++, right--) {
+            byte digit = buffer[left];
+            buffer[left] = buffer[right];
+            buffer[right] = digit;
+        }
+    }
+
+    private void appendUuid(long high, long low) {
+        high = (high & ~0xF000L) | 0x4000L; // version 4
+        low = (low & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L; // IETF variant
+        ensureCapacity(36);
+        appendHex(high >>> 32, 8);
+        buffer[length++] = '-';
+        appendHex(high >>> 16, 4);
+        buffer[length++] = '-';
+        appendHex(high, 4);
+        buffer[length++] = '-';
+        appendHex(low >>> 48, 4);
+        buffer[length++] = '-';
+        appendHex(low, 12);
+    }
+
+    private void appendHex(long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            buffer[length++] = HEX[(int) (value >>> shift) & 0xF];
+        }
+    }
+
+    private void ensureCapacity(int more) {
+        if (length + more > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + more));
+        }
+    }
+
+    private static int[] parseBounds(String placeholder) {
+        String[] fields = placeholder.split(":");
+        if (fields.length != 3) {
+            throw new IllegalArgumentException("Expected {{random:min:max}} but got {{" + placeholder + "}}");
+        }
+        int min = Integer.parseInt(fields[1].trim());
+        int max = Integer.parseInt(fields[2].trim());
+        if (max < min) {
+            throw new IllegalArgumentException("Empty range in {{" + placeholder + "}}");
+        }
+        return new int[] { min, max };
+    }
+}
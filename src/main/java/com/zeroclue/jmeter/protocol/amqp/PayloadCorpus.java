@@ -0,0 +1,251 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * A pool of message bodies whose sizes follow a distribution, generated once per test and shared
+ * by every thread of a publisher.
+ *
+ * Handing out a body is an array lookup, so publishing a realistic mix of sizes allocates nothing.
+ * Bodies are either random bytes, which don't compress, or text drawn from a small vocabulary,
+ * which compresses about as well as typical JSON or XML payloads.
+ */
+public class PayloadCorpus {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String FIXED = "fixed";
+    public static final String UNIFORM = "uniform";
+    public static final String NORMAL = "normal";
+    public static final String HISTOGRAM = "histogram file";
+
+    private static final byte[][] WORDS = words("id", "name", "value", "status", "timestamp",
+            "order", "customer", "amount", "currency", "true", "false", "null", "items", "price",
+            "quantity", "{\"", "\":", ",\"", "\"}", "[", "]", "0", "1", "42", "1024", "EUR", "USD");
+
+    // one build per sampler, so building a large corpus doesn't hold up the other samplers
+    private static final ConcurrentMap<String, FutureTask<PayloadCorpus>> CORPORA =
+            new ConcurrentHashMap<String, FutureTask<PayloadCorpus>>();
+
+    private final byte[][] bodies;
+    private final long totalBytes;
+    private final boolean compressible;
+    private final String description;
+
+    /**
+     * @param sizes the size of each body of the pool
+     * @param compressible text bodies rather than random bytes
+     */
+    public PayloadCorpus(int[] sizes, boolean compressible, long seed, String description) {
+        Random random = new Random(seed);
+        bodies = new byte[sizes.length][];
+        long total = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            bodies[i] = compressible ? text(random, sizes[i]) : bytes(random, sizes[i]);
+            total += sizes[i];
+        }
+        this.totalBytes = total;
+        this.compressible = compressible;
+        this.description = description;
+    }
+
+    /**
+     * @return the corpus shared by every thread of a sampler, keyed by its instance key, built by
+     * the first call while the other threads of that sampler wait for it
+     */
+    public static PayloadCorpus forSampler(final String sampler, final String distribution, final int size,
+            final int min, final int max, final int stdDev, final String histogramFile, final int poolSize,
+            final boolean compressible) throws IOException {
+        FutureTask<PayloadCorpus> task = CORPORA.get(sampler);
+        if (task == null) {
+            FutureTask<PayloadCorpus> own = new FutureTask<PayloadCorpus>(new Callable<PayloadCorpus>() {
+                @Override
+                public PayloadCorpus call() throws IOException {
+                    long started = System.currentTimeMillis();
+                    Random random = new Random(sampler.hashCode());
+                    int[] sizes = sizes(random, distribution, size, min, max, stdDev, histogramFile, poolSize);
+                    PayloadCorpus corpus = new PayloadCorpus(sizes, compressible, random.nextLong(),
+                            distribution + " sizes, " + (compressible ? "compressible" : "random") + " content");
+                    log.info("Built " + corpus.getCount() + " " + corpus + " bodies for " + sampler
+                            + " (mean " + corpus.getMeanSize() + " bytes) in "
+                            + (System.currentTimeMillis() - started) + " ms");
+                    return corpus;
+                }
+            });
+            task = CORPORA.putIfAbsent(sampler, own);
+            if (task == null) {
+                task = own;
+                own.run();
+            }
+        }
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            CORPORA.remove(sampler, task); // the next thread tries again
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the payloads of " + sampler);
+        }
+    }
+
+    /**
+     * Forgets the corpora of the previous test.
+     */
+    public static void reset() {
+        CORPORA.clear();
+    }
+
+    /**
+     * @param index any non-negative number, e.g. a counter of the publishing thread
+     */
+    public byte[] get(int index) {
+        return bodies[index % bodies.length];
+    }
+
+    public int getCount() {
+        return bodies.length;
+    }
+
+    public boolean isCompressible() {
+        return compressible;
+    }
+
+    public long getMeanSize() {
+        return totalBytes / bodies.length;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    static int[] sizes(Random random, String distribution, int size, int min, int max, int stdDev,
+            String histogramFile, int count) throws IOException {
+        int[] sizes = new int[count];
+        if (HISTOGRAM.equals(distribution)) {
+            Histogram histogram = readHistogram(histogramFile);
+            for (int i = 0; i < count; i++) {
+                sizes[i] = histogram.sample(random);
+            }
+        } else if (UNIFORM.equals(distribution)) {
+            if (max < min) {
+                throw new IllegalArgumentException("Maximum payload size " + max + " is below the minimum " + min);
+            }
+            for (int i = 0; i < count; i++) {
+                sizes[i] = min + random.nextInt(max - min + 1);
+            }
+        } else if (NORMAL.equals(distribution)) {
+            for (int i = 0; i < count; i++) {
+                long sample = Math.round(size + random.nextGaussian() * stdDev);
+                sizes[i] = (int) Math.max(min, Math.min(max, sample));
+            }
+        } else if (FIXED.equals(distribution)) {
+            Arrays.fill(sizes, size);
+        } else {
+            throw new IllegalArgumentException("Unknown payload size distribution: " + distribution);
+        }
+        return sizes;
+    }
+
+    /**
+     * Reads a histogram of message sizes, one <code>size[,weight]</code> line per bucket. Blank
+     * lines and lines starting with # are skipped, and the weight defaults to 1.
+     */
+    static Histogram readHistogram(String file) throws IOException {
+        List<Integer> sizes = new ArrayList<Integer>();
+        List<Double> weights = new ArrayList<Double>();
+        BufferedReader reader = Files.newBufferedReader(Paths.get(file).toAbsolutePath(),
+                Charset.forName("UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("[,;\\s]+");
+                sizes.add(Integer.valueOf(fields[0]));
+                weights.add(fields.length > 1 ? Double.valueOf(fields[1]) : 1.0);
+            }
+        } finally {
+            reader.close();
+        }
+        if (sizes.isEmpty()) {
+            throw new IllegalArgumentException("No message sizes in " + file);
+        }
+        return new Histogram(sizes, weights);
+    }
+
+    static final class Histogram {
+        private final int[] sizes;
+        private final double[] cumulative;
+
+        Histogram(List<Integer> sizes, List<Double> weights) {
+            this.sizes = new int[sizes.size()];
+            this.cumulative = new double[sizes.size()];
+            double total = 0;
+            for (int i = 0; i < this.sizes.length; i++) {
+                this.sizes[i] = sizes.get(i);
+                total += weights.get(i);
+                cumulative[i] = total;
+            }
+        }
+
+        int sample(Random random) {
+            double point = random.nextDouble() * cumulative[cumulative.length - 1];
+            int i = Arrays.binarySearch(cumulative, point);
+            return sizes[i >= 0 ? i : Math.min(-i - 1, sizes.length - 1)];
+        }
+    }
+
+    private static byte[] bytes(Random random, int size) {
+        byte[] body = new byte[size];
+        random.nextBytes(body);
+        return body;
+    }
+
+    private static byte[] text(Random random, int size) {
+        byte[] body = new byte[size];
+        int position = 0;
+        while (position < size) {
+            byte[] word = WORDS[random.nextInt(WORDS.length)];
+            int length = Math.min(word.length, size - position);
+            System.arraycopy(word, 0, body, position, length);
+            position += length;
+        }
+        return body;
+    }
+
+    private static byte[][] words(String... words) {
+        byte[][] bytes = new byte[words.length][];
+        for (int i = 0; i < words.length; i++) {
+            bytes[i] = words[i].getBytes(Charset.forName("US-ASCII"));
+        }
+        return bytes;
+    }
+}
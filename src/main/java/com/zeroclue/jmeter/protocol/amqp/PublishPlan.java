@@ -0,0 +1,44 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * Where and how a publisher sends its messages: exchange, routing key and message properties,
+ * evaluated once and reused for as long as none of the fields they come from holds a JMeter
+ * function or variable.
+ *
+ * The header map is the one the properties carry. The publisher may add per-message headers to it
+ * just before each <code>basicPublish</code>, which encodes them before returning.
+ */
+public class PublishPlan {
+
+    private final String exchange;
+    private final String routingKey;
+    private final AMQP.BasicProperties properties;
+    private final Map<String, Object> headers;
+
+    public PublishPlan(String exchange, String routingKey, AMQP.BasicProperties properties, Map<String, Object> headers) {
+        this.exchange = exchange;
+        this.routingKey = routingKey;
+        this.properties = properties;
+        this.headers = headers;
+    }
+
+    public String getExchange() {
+        return exchange;
+    }
+
+    public String getRoutingKey() {
+        return routingKey;
+    }
+
+    public AMQP.BasicProperties getProperties() {
+        return properties;
+    }
+
+    public Map<String, Object> getHeaders() {
+        return headers;
+    }
+}
@@ -0,0 +1,282 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * The routing keys of a publisher and how often each is used, built once per test and shared by
+ * every thread of the publisher.
+ *
+ * The key space is either
+ * <ul>
+ * <li>a pattern such as <code>orders.${n}</code>, for n from 0 to the count - 1,</li>
+ * <li>topic segments such as <code>orders.{eu|us|ap}.{16}</code>, every combination of a list of
+ * words or of the numbers 0 to N - 1 at each level,</li>
+ * <li>or a comma separated list of keys.</li>
+ * </ul>
+ *
+ * The keys are laid out in a table so that picking one per message is a single array lookup: the
+ * table holds each key as often as its share of a Zipf distribution, for instance, and is indexed
+ * at random. Hashing a field of the message body instead sends every message about the same entity
+ * with the same key, as a consistent-hash exchange would.
+ */
+public class RoutingKeys {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String UNIFORM = "uniform";
+    public static final String ROUND_ROBIN = "round-robin";
+    public static final String ZIPF = "zipf";
+    public static final String HASHED = "hash of body field";
+
+    public static final String N = AMQPTopology.N; // as the names of a provisioned topology
+
+    // enough slots that a Zipf tail key still gets its share, within a few megabytes of references;
+    // past MAX_TABLE_SIZE keys, the keys of the tail get no slot and are never picked
+    private static final int MIN_TABLE_SIZE = 1 << 16;
+    private static final int MAX_TABLE_SIZE = 1 << 22;
+
+    private static final ConcurrentMap<String, RoutingKeys> KEYS = new ConcurrentHashMap<String, RoutingKeys>();
+
+    private final String[] keys;
+    private final String[] table;
+    private final boolean random;
+    private final boolean hashed;
+    private final byte[] field; // the quoted field name to hash the value of, null to hash the whole body
+    private final String description;
+
+    private RoutingKeys(String[] keys, String[] table, boolean random, boolean hashed, String field,
+            String description) {
+        this.keys = keys;
+        this.table = table;
+        this.random = random;
+        this.hashed = hashed;
+        this.field = field == null || field.isEmpty() ? null : ("\"" + field + "\"").getBytes();
+        this.description = description;
+    }
+
+    /**
+     * @return the keys shared by every thread of a sampler, keyed by its instance key, built by the
+     * first call
+     */
+    public static RoutingKeys forSampler(String sampler, String distribution, String keySpace, int count,
+            double skew, String field) {
+        RoutingKeys keys = KEYS.get(sampler);
+        if (keys != null) {
+            return keys;
+        }
+        synchronized (KEYS) {
+            keys = KEYS.get(sampler);
+            if (keys == null) {
+                long started = System.currentTimeMillis();
+                keys = build(distribution, expand(keySpace, count), skew, field);
+                KEYS.put(sampler, keys);
+                log.info("Built " + keys.getCount() + " routing keys for " + sampler + ", " + keys
+                        + " in " + (System.currentTimeMillis() - started) + " ms");
+            }
+            return keys;
+        }
+    }
+
+    /**
+     * Forgets the keys of the previous test.
+     */
+    public static void reset() {
+        KEYS.clear();
+    }
+
+    static RoutingKeys build(String distribution, String[] keys, double skew, String field) {
+        if (UNIFORM.equals(distribution)) {
+            return new RoutingKeys(keys, keys, true, false, null, "uniform");
+        } else if (ROUND_ROBIN.equals(distribution)) {
+            return new RoutingKeys(keys, keys, false, false, null, "round-robin");
+        } else if (ZIPF.equals(distribution)) {
+            String[] table = zipf(keys, skew);
+            int top = 0;
+            while (top < table.length && table[top] == keys[0]) {
+                top++;
+            }
+            return new RoutingKeys(keys, table, true, false, null, String.format(Locale.ROOT, "zipf s=%.2f, %.1f%% to %s",
+                    skew, 100.0 * top / table.length, keys[0]));
+        } else if (HASHED.equals(distribution)) {
+            return new RoutingKeys(keys, keys, false, true, field,
+                    "hash of " + (field == null || field.isEmpty() ? "the body" : "body field " + field));
+        }
+        throw new IllegalArgumentException("Unknown routing key distribution: " + distribution);
+    }
+
+    /**
+     * @return the keys of a key space, in order
+     * @throws IllegalArgumentException if the key space has no keys, e.g. <code>{0}</code> or a
+     * list of blanks
+     */
+    static String[] expand(String keySpace, int count) {
+        if (keySpace == null || keySpace.trim().isEmpty()) {
+            throw new IllegalArgumentException("No routing keys");
+        }
+        List<String> keys = new ArrayList<String>();
+        if (keySpace.contains(N)) {
+            for (int n = 0; n < count; n++) {
+                keys.add(keySpace.replace(N, Integer.toString(n)));
+            }
+        } else if (keySpace.contains("{")) {
+            keys.add("");
+            String[] levels = keySpace.split("\\.", -1);
+            for (int level = 0; level < levels.length; level++) {
+                String[] words = words(levels[level]);
+                List<String> next = new ArrayList<String>(keys.size() * words.length);
+                for (String prefix : keys) {
+                    for (String word : words) {
+                        next.add(level == 0 ? word : prefix + "." + word);
+                    }
+                }
+                keys = next;
+            }
+        } else {
+            for (String key : keySpace.split(",")) {
+                if (!key.trim().isEmpty()) {
+                    keys.add(key.trim());
+                }
+            }
+        }
+        if (keys.isEmpty()) {
+            throw new IllegalArgumentException("No routing keys in " + keySpace);
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+
+    // {a|b|c} is a list of words, {16} the numbers 0 to 15, anything else a literal word
+    private static String[] words(String segment) {
+        if (!segment.startsWith("{") || !segment.endsWith("}")) {
+            return new String[] { segment };
+        }
+        String inner = segment.substring(1, segment.length() - 1);
+        if (inner.matches("\\d+")) {
+            String[] numbers = new String[Integer.parseInt(inner)];
+            for (int i = 0; i < numbers.length; i++) {
+                numbers[i] = Integer.toString(i);
+            }
+            return numbers;
+        }
+        return inner.split("\\|");
+    }
+
+    /*
+     * Key i is drawn with a probability proportional to 1 / (i + 1)^skew. Each slot of the table
+     * holds the key at its quantile, so picking a slot at random follows the distribution. The
+     * table has at most MAX_TABLE_SIZE slots, the keys past the last slot are never picked.
+     */
+    private static String[] zipf(String[] keys, double skew) {
+        double[] cumulative = new double[keys.length];
+        double total = 0;
+        for (int i = 0; i < keys.length; i++) {
+            total += 1 / Math.pow(i + 1, skew);
+            cumulative[i] = total;
+        }
+        int size = (int) Math.min(MAX_TABLE_SIZE, Math.max(MIN_TABLE_SIZE, 16L * keys.length));
+        if (keys.length > size) {
+            log.warn("Only the first " + size + " of " + keys.length + " routing keys are used by the zipf distribution");
+        }
+        String[] table = new String[size];
+        int key = 0;
+        for (int slot = 0; slot < size; slot++) {
+            double point = (slot + 0.5) / size * total;
+            while (key < keys.length - 1 && cumulative[key] < point) {
+                key++;
+            }
+            table[slot] = keys[key];
+        }
+        return table;
+    }
+
+    /**
+     * @param sequence a counter of the publishing thread, for round-robin
+     * @param body the message, for hashing
+     */
+    public String get(int sequence, byte[] body) {
+        if (hashed) {
+            return keys[bucket(hash(body), keys.length)];
+        }
+        if (random) {
+            return table[ThreadLocalRandom.current().nextInt(table.length)];
+        }
+        return table[(sequence & Integer.MAX_VALUE) % table.length];
+    }
+
+    /**
+     * @return whether the key depends on the message body rather than on the sequence
+     */
+    public boolean isHashed() {
+        return hashed;
+    }
+
+    public int getCount() {
+        return keys.length;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    // FNV-1a of the field's value, or of the whole body
+    private long hash(byte[] body) {
+        int from = 0;
+        int to = body.length;
+        if (field != null) {
+            int at = indexOf(body, field);
+            if (at >= 0) {
+                from = at + field.length;
+                while (from < to && (body[from] == ' ' || body[from] == ':' || body[from] == '"')) {
+                    from++;
+                }
+                int end = from;
+                while (end < to && body[end] != '"' && body[end] != ',' && body[end] != '}') {
+                    end++;
+                }
+                to = end;
+            }
+        }
+        long hash = 0xcbf29ce484222325L;
+        for (int i = from; i < to; i++) {
+            hash ^= body[i] & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private static int indexOf(byte[] body, byte[] pattern) {
+        outer:
+        for (int i = 0; i <= body.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (body[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    /*
+     * Jump consistent hash: growing the key space only moves the messages that now belong to the
+     * new keys.
+     */
+    static int bucket(long key, int buckets) {
+        long b = -1;
+        long j = 0;
+        while (j < buckets) {
+            b = j;
+            key = key * 2862933555777941757L + 1;
+            j = (long) ((b + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+        }
+        return (int) b;
+    }
+}
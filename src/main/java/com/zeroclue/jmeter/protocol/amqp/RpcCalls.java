@@ -0,0 +1,86 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The requests an RPC sample has in flight. Replies are completed by the reply consumer's
+ * dispatch thread while the sampler thread waits for them.
+ */
+public class RpcCalls {
+
+    private final String[] ids;
+    private final long[] sentAt;
+    private final boolean[] done;
+    private final long[] latencies;
+
+    private int sent; // guarded by this
+    private int completed; // guarded by this
+
+    public RpcCalls(int capacity) {
+        ids = new String[capacity];
+        sentAt = new long[capacity];
+        done = new boolean[capacity];
+        latencies = new long[capacity];
+    }
+
+    /**
+     * @return the index of the request, to pass to {@link #complete(int, long)}
+     */
+    public synchronized int add(String correlationId, long sentAtNanos) {
+        ids[sent] = correlationId;
+        sentAt[sent] = sentAtNanos;
+        return sent++;
+    }
+
+    public synchronized void complete(int index, long nowNanos) {
+        if (done[index]) {
+            return;
+        }
+        done[index] = true;
+        latencies[completed++] = nowNanos - sentAt[index];
+        notifyAll();
+    }
+
+    /**
+     * Waits until at most <code>max</code> requests are waiting for their reply.
+     *
+     * @return false if that didn't happen in time
+     */
+    public synchronized boolean awaitOutstanding(int max, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (sent - completed > max) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return true;
+    }
+
+    /**
+     * Stops waiting for the replies still outstanding, a late reply is then ignored.
+     */
+    public synchronized void expire(RpcReplies replies) {
+        for (int i = 0; i < sent; i++) {
+            if (!done[i]) {
+                replies.forget(ids[i]);
+            }
+        }
+    }
+
+    public synchronized int getSentCount() {
+        return sent;
+    }
+
+    public synchronized int getCompletedCount() {
+        return completed;
+    }
+
+    /**
+     * @return the round trip time of the i-th reply received, in nanoseconds
+     */
+    public synchronized long getLatencyNanos(int i) {
+        return latencies[i];
+    }
+}
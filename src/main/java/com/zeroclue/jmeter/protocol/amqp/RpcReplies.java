@@ -0,0 +1,141 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+
+/**
+ * Matches RPC replies to their requests by correlation id, for every RPC sampler of an
+ * {@link AMQPConnectionManager}.
+ *
+ * Replies arrive on a single reply queue shared by all threads, consumed on a channel of its own.
+ */
+public class RpcReplies {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    private final AMQPConnectionManager manager;
+
+    private final ConcurrentMap<String, Pending> pending = new ConcurrentHashMap<String, Pending>();
+    private final String idPrefix = UUID.randomUUID().toString() + "-";
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong unmatched = new AtomicLong();
+
+    private Channel sharedChannel; // guarded by this
+    private String sharedQueue; // guarded by this
+
+    public RpcReplies(AMQPConnectionManager manager) {
+        this.manager = manager;
+    }
+
+    /**
+     * @return the name of the shared reply queue, declared and consumed on first use
+     */
+    public synchronized String getSharedReplyQueue() throws Exception {
+        if (sharedChannel == null || !sharedChannel.isOpen()) {
+            sharedChannel = manager.createSharedChannel();
+            // server named, exclusive and auto-delete
+            sharedQueue = sharedChannel.queueDeclare().getQueue();
+            sharedChannel.basicConsume(sharedQueue, true, newConsumer(sharedChannel));
+            log.info("Consuming RPC replies on " + sharedQueue);
+        }
+        return sharedQueue;
+    }
+
+    /**
+     * Registers a request about to be sent.
+     *
+     * @return the correlation id to send it with
+     */
+    public String expect(RpcCalls calls, long sentAtNanos) {
+        String id = idPrefix + sequence.incrementAndGet();
+        int index = calls.add(id, sentAtNanos);
+        pending.put(id, new Pending(calls, index));
+        return id;
+    }
+
+    public void forget(String correlationId) {
+        pending.remove(correlationId);
+    }
+
+    /**
+     * @return a consumer completing the requests its replies belong to
+     */
+    public Consumer newConsumer(Channel channel) {
+        return new ReplyConsumer(channel);
+    }
+
+    /**
+     * @return true if the consumer was created by {@link #newConsumer(Channel)}
+     */
+    public static boolean isReplyConsumer(Consumer consumer) {
+        return consumer instanceof ReplyConsumer;
+    }
+
+    private class ReplyConsumer extends DefaultConsumer {
+
+        ReplyConsumer(Channel channel) {
+            super(channel);
+        }
+
+        @Override
+        public void handleDelivery(String consumerTag, Envelope envelope,
+                AMQP.BasicProperties properties, byte[] body) {
+            complete(properties.getCorrelationId());
+        }
+    }
+
+    private void complete(String correlationId) {
+        long now = System.nanoTime();
+        Pending call = correlationId == null ? null : pending.remove(correlationId);
+        if (call == null) {
+            unmatched.incrementAndGet(); // late, or not one of ours
+            return;
+        }
+        call.calls.complete(call.index, now);
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return replies that arrived after their request timed out, or matched no request
+     */
+    public long getUnmatchedCount() {
+        return unmatched.get();
+    }
+
+    public synchronized void close() {
+        pending.clear();
+        try {
+            if (sharedChannel != null && sharedChannel.isOpen()) {
+                sharedChannel.close();
+            }
+        } catch (Exception e) {
+            log.debug("Failed to close RPC reply channel", e);
+        }
+        sharedChannel = null;
+        sharedQueue = null;
+    }
+
+    private static final class Pending {
+        final RpcCalls calls;
+        final int index;
+
+        Pending(RpcCalls calls, int index) {
+            this.calls = calls;
+            this.index = index;
+        }
+    }
+}
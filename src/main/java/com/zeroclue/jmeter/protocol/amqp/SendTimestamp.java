@@ -0,0 +1,53 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.Map;
+
+import com.rabbitmq.client.AMQP;
+
+/**
+ * The send time a publisher stamps on each message so that consumers can measure the latency
+ * from publish to delivery.
+ *
+ * The stamp is in microseconds since the epoch: wall clock time at class load plus the
+ * <code>System.nanoTime()</code> elapsed since. Publishers and consumers must run in the same JVM
+ * or on hosts with synchronized clocks.
+ */
+public final class SendTimestamp {
+
+    public static final String HEADER = "x-send-time-micros";
+
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
+
+    private SendTimestamp() {
+    }
+
+    public static long nowMicros() {
+        return toMicros(System.nanoTime());
+    }
+
+    /**
+     * @return the wall clock time of a <code>System.nanoTime()</code> value, in microseconds
+     */
+    public static long toMicros(long nanoTime) {
+        return BASE_MICROS + (nanoTime - BASE_NANOS) / 1000;
+    }
+
+    /**
+     * @return the send time stamped on a message, or -1 if it has none
+     */
+    public static long read(AMQP.BasicProperties properties) {
+        if (properties == null) {
+            return -1;
+        }
+        Map<String, Object> headers = properties.getHeaders();
+        if (headers == null) {
+            return -1;
+        }
+        Object stamp = headers.get(HEADER);
+        if (stamp instanceof Number) {
+            return ((Number) stamp).longValue();
+        }
+        return -1;
+    }
+}
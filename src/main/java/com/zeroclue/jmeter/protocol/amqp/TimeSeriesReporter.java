@@ -0,0 +1,276 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+import org.HdrHistogram.Histogram;
+
+/**
+ * Writes the rates of the {@link AMQPConnectionManager}s' counters to a file at a fixed interval,
+ * however the samplers group messages into samples. Off unless the
+ * <code>amqp.timeseries.file</code> JMeter property names the file; every connection manager of
+ * the test writes to the same file, through one reporter started by the first of them.
+ *
+ * Every interval gets a record for all connections together and one per sampler: publish,
+ * delivery, ack, confirm, nack and return rates per second, the in-flight and buffered gauges,
+ * the time publishing was blocked and the publishes lost with their connection during the
+ * interval, and confirm latency percentiles. Records are CSV, or InfluxDB line protocol if the
+ * <code>amqp.timeseries.format</code> JMeter property is <code>line</code>.
+ */
+public class TimeSeriesReporter implements Runnable {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String FILE_PROPERTY = "amqp.timeseries.file";
+    public static final String DEFAULT_FILE = ""; // off
+    public static final String INTERVAL_PROPERTY = "amqp.timeseries.interval";
+    public static final int DEFAULT_INTERVAL = 1000;
+    public static final String FORMAT_PROPERTY = "amqp.timeseries.format";
+    public static final String FORMAT_CSV = "csv";
+    public static final String FORMAT_LINE = "line";
+
+    public static final String ALL = "all";
+
+    // counters kept between intervals, in this order
+    private static final int PUBLISHED = 0;
+    private static final int DELIVERED = 1;
+    private static final int ACKED = 2;
+    private static final int CONFIRMED = 3;
+    private static final int NACKED = 4;
+    private static final int RETURNED = 5;
+    private static final int BLOCKED = 6;
+    private static final int LOST = 7;
+    private static final int COUNTERS = 8;
+
+    private static TimeSeriesReporter running; // guarded by TimeSeriesReporter.class
+
+    private final Set<AMQPConnectionManager> managers =
+            Collections.newSetFromMap(new IdentityHashMap<AMQPConnectionManager, Boolean>()); // guarded by this
+    private final PrintWriter out;
+    private final boolean lineProtocol;
+    private final ScheduledExecutorService timer;
+
+    private final Map<String, long[]> previous = new HashMap<String, long[]>(); // guarded by this
+    private long previousNanos; // guarded by this
+
+    private TimeSeriesReporter(PrintWriter out, boolean lineProtocol) {
+        this.out = out;
+        this.lineProtocol = lineProtocol;
+        this.previousNanos = System.nanoTime();
+        this.timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "AMQP time series");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (!lineProtocol) {
+            out.println("timestamp_ms,scope,published_per_s,delivered_per_s,acked_per_s,confirmed_per_s,"
+                    + "nacked_per_s,returned_per_s,in_flight,buffered,blocked_ms,lost,"
+                    + "confirm_p50_us,confirm_p99_us,confirm_max_us");
+        }
+    }
+
+    /**
+     * Adds the counters of a connection manager to the running reporter, starting it for the first
+     * manager of the test.
+     *
+     * @return the running reporter, or null if the <code>amqp.timeseries.file</code> property is
+     * blank or the file can't be written
+     */
+    public static synchronized TimeSeriesReporter start(AMQPConnectionManager manager) {
+        if (running == null) {
+            String file = JMeterUtils.getPropDefault(FILE_PROPERTY, DEFAULT_FILE);
+            if (file == null || file.trim().isEmpty()) {
+                return null;
+            }
+            int interval = JMeterUtils.getPropDefault(INTERVAL_PROPERTY, DEFAULT_INTERVAL);
+            boolean lineProtocol = FORMAT_LINE.equals(JMeterUtils.getPropDefault(FORMAT_PROPERTY, FORMAT_CSV));
+            try {
+                running = new TimeSeriesReporter(new PrintWriter(new FileWriter(file)), lineProtocol);
+            } catch (IOException e) {
+                log.error("Failed to open " + file + " for AMQP rates", e);
+                return null;
+            }
+            running.timer.scheduleAtFixedRate(running, interval, interval, TimeUnit.MILLISECONDS);
+            log.info("Writing AMQP rates every " + interval + " ms to " + file);
+        }
+        synchronized (running) {
+            running.managers.add(manager);
+        }
+        return running;
+    }
+
+    /**
+     * Stops reporting the counters of a connection manager. Once the last one stops, writes the
+     * last, partial interval and closes the file.
+     */
+    public void stop(AMQPConnectionManager manager) {
+        synchronized (TimeSeriesReporter.class) {
+            synchronized (this) {
+                if (managers.size() > 1 || !managers.contains(manager)) {
+                    managers.remove(manager);
+                    return;
+                }
+            }
+            if (running == this) {
+                running = null;
+            }
+        }
+        timer.shutdown();
+        try {
+            timer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        run();
+        synchronized (this) {
+            managers.clear();
+            out.close();
+        }
+    }
+
+    @Override
+    public synchronized void run() {
+        try {
+            long now = System.nanoTime();
+            double seconds = (now - previousNanos) / 1e9;
+            previousNanos = now;
+            if (seconds <= 0) {
+                return;
+            }
+            long timestamp = System.currentTimeMillis();
+            Map<String, Histogram> latencies = LatencyHistograms.drain();
+
+            long[] all = new long[COUNTERS + 2];
+            // samplers of the same name under different managers are reported together
+            Map<String, long[]> samplers = new HashMap<String, long[]>();
+            List<String> order = new ArrayList<String>();
+            for (AMQPConnectionManager manager : managers) {
+                for (ConnectionShard shard : manager.getConnectionShards()) {
+                    add(all, snapshot(shard));
+                }
+                for (Map.Entry<String, AMQPCounters> entry : manager.getAllSamplerCounters().entrySet()) {
+                    long[] values = samplers.get(entry.getKey());
+                    if (values == null) {
+                        values = new long[COUNTERS + 2];
+                        samplers.put(entry.getKey(), values);
+                        order.add(entry.getKey());
+                    }
+                    add(values, snapshot(entry.getValue()));
+                }
+            }
+            Histogram allConfirms = new Histogram(LatencyHistograms.SIGNIFICANT_DIGITS);
+            for (Map.Entry<String, Histogram> entry : latencies.entrySet()) {
+                if (entry.getKey().endsWith("\t" + LatencyHistograms.CONFIRM)) {
+                    allConfirms.add(entry.getValue());
+                }
+            }
+            write(timestamp, seconds, ALL, all, allConfirms);
+
+            for (String sampler : order) {
+                write(timestamp, seconds, sampler, samplers.get(sampler),
+                        latencies.get(sampler + "\t" + LatencyHistograms.CONFIRM));
+            }
+            out.flush();
+        } catch (RuntimeException e) {
+            log.warn("Failed to write AMQP rates", e); // keep the timer going
+        }
+    }
+
+    private static void add(long[] total, long[] values) {
+        for (int i = 0; i < total.length; i++) {
+            total[i] += values[i];
+        }
+    }
+
+    private static long[] snapshot(AMQPCounters counters) {
+        long[] values = new long[COUNTERS + 2];
+        values[PUBLISHED] = counters.getPublishedCount();
+        values[DELIVERED] = counters.getDeliveredCount();
+        values[ACKED] = counters.getAckedCount();
+        values[CONFIRMED] = counters.getConfirmedCount();
+        values[NACKED] = counters.getNackedCount();
+        values[RETURNED] = counters.getReturnedCount();
+        values[BLOCKED] = counters.getBlockedMillis();
+        values[LOST] = counters.getLostCount();
+        // gauges
+        values[COUNTERS] = counters.getInFlightCount();
+        values[COUNTERS + 1] = counters.getBufferedCount();
+        return values;
+    }
+
+    private void write(long timestamp, double seconds, String scope, long[] values, Histogram confirms) {
+        long[] last = previous.get(scope);
+        if (last == null) {
+            last = new long[values.length];
+        }
+        previous.put(scope, values);
+
+        String[] names = { "published_per_s", "delivered_per_s", "acked_per_s", "confirmed_per_s",
+                "nacked_per_s", "returned_per_s" };
+        StringBuilder record = new StringBuilder();
+        if (lineProtocol) {
+            record.append("amqp,scope=").append(escapeTag(scope)).append(' ');
+        } else {
+            record.append(timestamp).append(',').append(escapeCsv(scope));
+        }
+        for (int i = PUBLISHED; i <= RETURNED; i++) {
+            field(record, names[i], String.format(Locale.ROOT, "%.1f", (values[i] - last[i]) / seconds));
+        }
+        field(record, "in_flight", Long.toString(values[COUNTERS]));
+        field(record, "buffered", Long.toString(values[COUNTERS + 1]));
+        field(record, "blocked_ms", Long.toString(values[BLOCKED] - last[BLOCKED]));
+        field(record, "lost", Long.toString(values[LOST] - last[LOST]));
+        boolean hasConfirms = confirms != null && confirms.getTotalCount() > 0;
+        field(record, "confirm_p50_us", hasConfirms ? Long.toString(confirms.getValueAtPercentile(50)) : null);
+        field(record, "confirm_p99_us", hasConfirms ? Long.toString(confirms.getValueAtPercentile(99)) : null);
+        field(record, "confirm_max_us", hasConfirms ? Long.toString(confirms.getMaxValue()) : null);
+        if (lineProtocol) {
+            record.append(' ').append(TimeUnit.MILLISECONDS.toNanos(timestamp));
+        }
+        out.println(record);
+    }
+
+    private void field(StringBuilder record, String name, String value) {
+        if (!lineProtocol) {
+            record.append(',');
+            if (value != null) {
+                record.append(value);
+            }
+        } else if (value != null) {
+            if (record.charAt(record.length() - 1) != ' ') {
+                record.append(',');
+            }
+            record.append(name).append('=').append(value);
+        }
+    }
+
+    private static String escapeTag(String value) {
+        return value.replace("\\", "\\\\").replace(",", "\\,").replace("=", "\\=").replace(" ", "\\ ");
+    }
+
+    private static String escapeCsv(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+}
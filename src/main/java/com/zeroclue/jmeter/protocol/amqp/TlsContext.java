@@ -0,0 +1,253 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HandshakeCompletedListener;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.apache.jmeter.util.JMeterUtils;
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+import com.rabbitmq.client.NullTrustManager;
+
+/**
+ * An SSL context shared by every connection manager of the JVM using the same key and trust
+ * stores, so the stores are read once and reconnecting clients can resume their TLS sessions
+ * instead of running a full handshake.
+ *
+ * The client session cache is sized by the <code>amqp.tls.sessionCacheSize</code> JMeter property
+ * and its sessions expire after <code>amqp.tls.sessionTimeout</code> seconds; the JVM defaults
+ * apply if they aren't set.
+ */
+public class TlsContext implements TlsContextMBean {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    public static final String SESSION_CACHE_SIZE_PROPERTY = "amqp.tls.sessionCacheSize";
+    public static final String SESSION_TIMEOUT_PROPERTY = "amqp.tls.sessionTimeout";
+
+    // these are hard-coded for now, should eventually be configurable
+    private static final String KEYSTORE_TYPE = "PKCS12";
+    private static final String TRUSTSTORE_TYPE = "JKS";
+    private static final String CERT_TYPE = "SunX509";
+    private static final String SSL_VERSION = "TLSv1.2";
+    private static final String TRUST_ALL_VERSION = "TLS";
+
+    private static final ConcurrentMap<String, TlsContext> CONTEXTS = new ConcurrentHashMap<String, TlsContext>();
+
+    private final SSLContext context;
+    private final SSLSocketFactory socketFactory;
+    private final String description;
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong resumed = new AtomicLong();
+
+    private TlsContext(SSLContext context, String description) {
+        this.context = context;
+        this.socketFactory = new CountingSocketFactory(context.getSocketFactory());
+        this.description = description;
+
+        SSLSessionContext sessions = context.getClientSessionContext();
+        int cacheSize = JMeterUtils.getPropDefault(SESSION_CACHE_SIZE_PROPERTY, -1);
+        if (cacheSize >= 0) {
+            sessions.setSessionCacheSize(cacheSize);
+        }
+        int timeout = JMeterUtils.getPropDefault(SESSION_TIMEOUT_PROPERTY, -1);
+        if (timeout >= 0) {
+            sessions.setSessionTimeout(timeout);
+        }
+    }
+
+    /**
+     * @return the context presenting the client certificate of the key store and trusting the
+     * certificates of the trust store, loaded by the first call for these stores
+     */
+    public static TlsContext forStores(String keyStore, String keyStorePassword, String trustStore,
+            String trustStorePassword) throws Exception {
+        // a store changed on disk is loaded again
+        String key = keyStore + "\t" + lastModified(keyStore) + "\t" + keyStorePassword
+                + "\t" + trustStore + "\t" + lastModified(trustStore) + "\t" + trustStorePassword;
+        TlsContext tls = CONTEXTS.get(key);
+        if (tls != null) {
+            return tls;
+        }
+        synchronized (CONTEXTS) {
+            tls = CONTEXTS.get(key);
+            if (tls == null) {
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(CERT_TYPE);
+                kmf.init(load(keyStore, keyStorePassword, KEYSTORE_TYPE), keyStorePassword.toCharArray());
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(CERT_TYPE);
+                tmf.init(load(trustStore, trustStorePassword, TRUSTSTORE_TYPE));
+
+                SSLContext c = SSLContext.getInstance(SSL_VERSION);
+                // use the default SecureRandom implementation by setting the third param to null
+                c.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+                tls = new TlsContext(c, keyStore + " / " + trustStore);
+                CONTEXTS.put(key, tls);
+                log.info("Loaded TLS key store " + keyStore + " and trust store " + trustStore);
+            }
+            return tls;
+        }
+    }
+
+    /**
+     * @return the context trusting any server certificate, as without a client certificate
+     */
+    public static TlsContext trustAll() throws Exception {
+        String key = TRUST_ALL_VERSION;
+        TlsContext tls = CONTEXTS.get(key);
+        if (tls != null) {
+            return tls;
+        }
+        synchronized (CONTEXTS) {
+            tls = CONTEXTS.get(key);
+            if (tls == null) {
+                SSLContext c = SSLContext.getInstance(TRUST_ALL_VERSION);
+                c.init(null, new TrustManager[] { new NullTrustManager() }, null);
+                tls = new TlsContext(c, "trust all");
+                CONTEXTS.put(key, tls);
+            }
+            return tls;
+        }
+    }
+
+    /**
+     * @return a socket factory counting the handshakes of its sockets
+     */
+    public SSLSocketFactory getSocketFactory() {
+        return socketFactory;
+    }
+
+    public SSLContext getContext() {
+        return context;
+    }
+
+    @Override
+    public long getHandshakeCount() {
+        return handshakes.get();
+    }
+
+    @Override
+    public long getResumedCount() {
+        return resumed.get();
+    }
+
+    @Override
+    public long getFullHandshakeCount() {
+        return handshakes.get() - resumed.get();
+    }
+
+    @Override
+    public int getCachedSessionCount() {
+        int count = 0;
+        for (Enumeration<byte[]> ids = context.getClientSessionContext().getIds(); ids.hasMoreElements(); ids.nextElement()) {
+            count++;
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return description;
+    }
+
+    private static long lastModified(String path) {
+        return Paths.get(path).toAbsolutePath().toFile().lastModified();
+    }
+
+    private static KeyStore load(String path, String pass, String keyStoreType) throws Exception {
+        KeyStore ks = KeyStore.getInstance(keyStoreType);
+        InputStream in = new FileInputStream(new File(Paths.get(path).toAbsolutePath().toString()));
+        try {
+            ks.load(in, pass.toCharArray());
+        } finally {
+            in.close();
+        }
+        return ks;
+    }
+
+    private Socket watch(Socket socket) {
+        if (socket instanceof SSLSocket) {
+            final long createdAt = System.currentTimeMillis();
+            ((SSLSocket) socket).addHandshakeCompletedListener(new HandshakeCompletedListener() {
+                @Override
+                public void handshakeCompleted(HandshakeCompletedEvent event) {
+                    handshakes.incrementAndGet();
+                    // a resumed session was created by an earlier connection
+                    if (event.getSession().getCreationTime() < createdAt) {
+                        resumed.incrementAndGet();
+                    }
+                }
+            });
+        }
+        return socket;
+    }
+
+    private final class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return watch(delegate.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket s, String host, int port, boolean autoClose) throws IOException {
+            return watch(delegate.createSocket(s, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return watch(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return watch(delegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return watch(delegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort)
+                throws IOException {
+            return watch(delegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
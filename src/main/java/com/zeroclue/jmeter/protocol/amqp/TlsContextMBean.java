@@ -0,0 +1,24 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+/**
+ * A cached TLS context as seen over JMX.
+ */
+public interface TlsContextMBean {
+
+    /**
+     * @return the number of completed TLS handshakes, full or resumed
+     */
+    long getHandshakeCount();
+
+    /**
+     * @return the number of handshakes that resumed a cached session
+     */
+    long getResumedCount();
+
+    long getFullHandshakeCount();
+
+    /**
+     * @return the number of client sessions cached for resumption
+     */
+    int getCachedSessionCount();
+}
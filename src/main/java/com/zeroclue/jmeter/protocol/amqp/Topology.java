@@ -0,0 +1,76 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.rabbitmq.client.Channel;
+
+/**
+ * The exchanges, queues and bindings the samplers of a connection manager declared, so that they
+ * can be declared again in the same order once a lost connection is recovered.
+ *
+ * A declaration made by many threads is kept once.
+ */
+public class Topology {
+
+    private final Map<String, Declaration> declarations = new LinkedHashMap<String, Declaration>(); // guarded by this
+
+    public synchronized void recordExchange(final String exchange, final String type, final boolean durable) {
+        declarations.put("exchange\t" + exchange, new Declaration() {
+            @Override
+            void declare(Channel channel) throws IOException {
+                channel.exchangeDeclare(exchange, type, durable);
+            }
+        });
+    }
+
+    public synchronized void recordQueue(final String queue, final boolean durable, final boolean exclusive,
+            final boolean autoDelete, final Map<String, Object> arguments) {
+        declarations.put("queue\t" + queue, new Declaration() {
+            @Override
+            void declare(Channel channel) throws IOException {
+                channel.queueDeclare(queue, durable, exclusive, autoDelete, arguments);
+            }
+        });
+    }
+
+    public synchronized void recordBinding(final String queue, final String exchange, final String routingKey) {
+        declarations.put("binding\t" + queue + "\t" + exchange + "\t" + routingKey, new Declaration() {
+            @Override
+            void declare(Channel channel) throws IOException {
+                channel.queueBind(queue, exchange, routingKey);
+            }
+        });
+    }
+
+    /**
+     * Declares everything recorded, on a channel of the recovered connection.
+     *
+     * @return the number of declarations
+     */
+    public int redeclare(Channel channel) throws IOException {
+        List<Declaration> all;
+        synchronized (this) {
+            all = new ArrayList<Declaration>(declarations.values());
+        }
+        for (Declaration declaration : all) {
+            declaration.declare(channel);
+        }
+        return all.size();
+    }
+
+    public synchronized int size() {
+        return declarations.size();
+    }
+
+    public synchronized void clear() {
+        declarations.clear();
+    }
+
+    private abstract static class Declaration {
+        abstract void declare(Channel channel) throws IOException;
+    }
+}
@@ -0,0 +1,88 @@
+package com.zeroclue.jmeter.protocol.amqp;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jorphan.logging.LoggingManager;
+import org.apache.log.Logger;
+
+/**
+ * The queues, exchanges and bindings declared in this JVM during the current test.
+ *
+ * The first sampler thread needing a declaration runs it, the others wait for it to complete
+ * rather than sending the same declaration again, so a ramp-up of hundreds of threads costs the
+ * broker one declaration each. A declaration that failed is forgotten, the next thread needing it
+ * tries again.
+ */
+public final class TopologyRegistry {
+
+    private static final Logger log = LoggingManager.getLoggerForClass();
+
+    // "broker/vhost\tkind\tname" -> the declaration, run once
+    private static final ConcurrentMap<String, FutureTask<Void>> DECLARATIONS =
+            new ConcurrentHashMap<String, FutureTask<Void>>();
+
+    private static final AtomicLong declared = new AtomicLong();
+    private static final AtomicLong shared = new AtomicLong();
+
+    private TopologyRegistry() {
+    }
+
+    /**
+     * @return the key of a declaration on the broker and virtual host of a connection manager
+     */
+    public static String key(AMQPConnectionManager manager, String kind, String name) {
+        return manager.getHost() + ":" + manager.getPort() + "/" + manager.getVirtualHost()
+                + "\t" + kind + "\t" + name;
+    }
+
+    /**
+     * Runs a declaration unless it ran already during this test, waiting for it if another thread
+     * is running it.
+     *
+     * @throws Exception the failure of the declaration, whichever thread ran it
+     */
+    public static void declareOnce(String key, Callable<Void> declaration) throws Exception {
+        FutureTask<Void> task = DECLARATIONS.get(key);
+        if (task == null) {
+            FutureTask<Void> own = new FutureTask<Void>(declaration);
+            task = DECLARATIONS.putIfAbsent(key, own);
+            if (task == null) {
+                task = own;
+                own.run();
+                declared.incrementAndGet();
+            } else {
+                shared.incrementAndGet();
+            }
+        } else {
+            shared.incrementAndGet();
+        }
+        try {
+            task.get();
+        } catch (ExecutionException e) {
+            DECLARATIONS.remove(key, task);
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Forgets the declarations of the previous test, whose queues may have been deleted since.
+     */
+    public static void reset() {
+        if (!DECLARATIONS.isEmpty()) {
+            log.info("Topology declared " + declared.get() + " times, " + shared.get()
+                    + " declarations by other threads were waited for instead of repeated");
+        }
+        DECLARATIONS.clear();
+        declared.set(0);
+        shared.set(0);
+    }
+}
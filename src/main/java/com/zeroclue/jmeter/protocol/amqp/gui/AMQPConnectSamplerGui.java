@@ -0,0 +1,103 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.samplers.gui.AbstractSamplerGui;
+import org.apache.jmeter.testelement.TestElement;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPConnectSampler;
+
+/**
+ * GUI for the AMQP connect sampler. It has no exchange or queue, the connection settings are
+ * those of the AMQP Connection Manager.
+ */
+public class AMQPConnectSamplerGui extends AbstractSamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private JCheckBox openChannel = new JCheckBox("Open Channel?", AMQPConnectSampler.DEFAULT_OPEN_CHANNEL);
+    private JCheckBox closeConnection = new JCheckBox("Close Connection After Each Sample?",
+            AMQPConnectSampler.DEFAULT_CLOSE_CONNECTION);
+
+    public AMQPConnectSamplerGui(){
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP Connect Sampler";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQPConnectSampler)) return;
+        AMQPConnectSampler sampler = (AMQPConnectSampler) element;
+
+        openChannel.setSelected(sampler.getOpenChannel());
+        closeConnection.setSelected(sampler.getCloseConnection());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPConnectSampler sampler = new AMQPConnectSampler();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQPConnectSampler sampler = (AMQPConnectSampler) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        sampler.setOpenChannel(openChannel.isSelected());
+        sampler.setCloseConnection(closeConnection.isSelected());
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    private void init() {
+        setLayout(new BorderLayout(0, 5));
+        setBorder(makeBorder());
+        add(makeTitlePanel(), BorderLayout.NORTH); // Add the standard title
+
+        JPanel mainPanel = new VerticalPanel();
+        mainPanel.add(openChannel);
+        mainPanel.add(closeConnection);
+
+        add(mainPanel);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        openChannel.setSelected(AMQPConnectSampler.DEFAULT_OPEN_CHANNEL);
+        closeConnection.setSelected(AMQPConnectSampler.DEFAULT_CLOSE_CONNECTION);
+    }
+}
@@ -9,11 +9,13 @@ import javax.swing.JPanel;
 import org.apache.jmeter.gui.util.VerticalPanel;
 import org.apache.jmeter.testelement.TestElement;
 import org.apache.jmeter.config.gui.AbstractConfigGui;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextField;
 import org.apache.jorphan.logging.LoggingManager;
 import org.apache.log.Logger;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPConnectionManager;
+import com.zeroclue.jmeter.protocol.amqp.DispatchExecutor;
 
 /**
  * A GUI component allowing the user to configur an AMQP connection
@@ -36,6 +38,23 @@ public class AMQPConnectionManagerGui extends AbstractConfigGui {
     private final JCheckBox cbSSLClientCert = new JCheckBox("Client SSL Cert?", false);
     private JLabeledTextField timeout = new JLabeledTextField("Timeout (milliseconds, 0 = infinite)");
     private JLabeledTextField heartbeat = new JLabeledTextField("Heartbeat (seconds, 0 = none)");
+    private JLabeledTextField channelPoolSize = new JLabeledTextField("Channel Pool Size (0 = one per thread)");
+    private JLabeledTextField channelPoolTimeout = new JLabeledTextField("Channel Wait (milliseconds, 0 = forever)");
+    private JLabeledTextField connections = new JLabeledTextField("Connections");
+    private JLabeledChoice connectionSelection = new JLabeledChoice("Spread Channels", new String[]{
+            AMQPConnectionManager.SELECTION_ROUND_ROBIN, AMQPConnectionManager.SELECTION_LEAST_LOADED});
+    private JLabeledChoice dispatchPool = new JLabeledChoice("Consumer Dispatch", new String[]{
+            DispatchExecutor.FIXED, DispatchExecutor.WORK_STEALING, DispatchExecutor.VIRTUAL});
+    private JLabeledTextField dispatchThreads = new JLabeledTextField("Dispatch Threads");
+    private JLabeledChoice connectionMode = new JLabeledChoice("Connection Mode", new String[]{
+            AMQPConnectionManager.MODE_SHARED, AMQPConnectionManager.MODE_PER_THREAD});
+    private JLabeledTextField connectRate = new JLabeledTextField("Connects/s (0 = no limit)");
+    private JLabeledTextField connectJitter = new JLabeledTextField("Connect Jitter (ms)");
+    private final JCheckBox automaticRecovery = new JCheckBox("Recover Lost Connections?",
+            AMQPConnectionManager.DEFAULT_AUTOMATIC_RECOVERY);
+    private JLabeledTextField recoveryDelay = new JLabeledTextField("Recovery Delay (ms)");
+    private JLabeledTextField recoveryMaxDelay = new JLabeledTextField("Max Recovery Delay (ms)");
+    private JLabeledTextField recoveryTimeout = new JLabeledTextField("Recovery Wait (ms)");
 
     /**
      * Create a new AMQPConnectionManagerGui as a standalone component.
@@ -83,6 +102,19 @@ public class AMQPConnectionManagerGui extends AbstractConfigGui {
         cbSSLClientCert.setSelected(manager.sslClientCert());
         timeout.setText(manager.getTimeout());
         heartbeat.setText(manager.getHeartbeat());
+        channelPoolSize.setText(manager.getChannelPoolSize());
+        channelPoolTimeout.setText(manager.getChannelPoolTimeout());
+        connections.setText(manager.getConnections());
+        connectionSelection.setText(manager.getConnectionSelection());
+        dispatchPool.setText(manager.getDispatchPool());
+        dispatchThreads.setText(manager.getDispatchThreads());
+        connectionMode.setText(manager.getConnectionMode());
+        connectRate.setText(manager.getConnectRate());
+        connectJitter.setText(manager.getConnectJitter());
+        automaticRecovery.setSelected(manager.isAutomaticRecovery());
+        recoveryDelay.setText(manager.getRecoveryDelay());
+        recoveryMaxDelay.setText(manager.getRecoveryMaxDelay());
+        recoveryTimeout.setText(manager.getRecoveryTimeout());
     }
 
     /**
@@ -103,6 +135,19 @@ public class AMQPConnectionManagerGui extends AbstractConfigGui {
         cbSSLClientCert.setSelected(false);
         timeout.setText(AMQPConnectionManager.DEFAULT_TIMEOUT_STRING);
         heartbeat.setText(AMQPConnectionManager.DEFAULT_HEARTBEAT_STRING);
+        channelPoolSize.setText(AMQPConnectionManager.DEFAULT_CHANNEL_POOL_SIZE_STRING);
+        channelPoolTimeout.setText(AMQPConnectionManager.DEFAULT_CHANNEL_POOL_TIMEOUT_STRING);
+        connections.setText(AMQPConnectionManager.DEFAULT_CONNECTIONS_STRING);
+        connectionSelection.setText(AMQPConnectionManager.DEFAULT_CONNECTION_SELECTION);
+        dispatchPool.setText(AMQPConnectionManager.DEFAULT_DISPATCH_POOL);
+        dispatchThreads.setText(AMQPConnectionManager.DEFAULT_POOL_SIZE_STRING);
+        connectionMode.setText(AMQPConnectionManager.DEFAULT_CONNECTION_MODE);
+        connectRate.setText(AMQPConnectionManager.DEFAULT_CONNECT_RATE_STRING);
+        connectJitter.setText(AMQPConnectionManager.DEFAULT_CONNECT_JITTER_STRING);
+        automaticRecovery.setSelected(AMQPConnectionManager.DEFAULT_AUTOMATIC_RECOVERY);
+        recoveryDelay.setText(AMQPConnectionManager.DEFAULT_RECOVERY_DELAY_STRING);
+        recoveryMaxDelay.setText(AMQPConnectionManager.DEFAULT_RECOVERY_MAX_DELAY_STRING);
+        recoveryTimeout.setText(AMQPConnectionManager.DEFAULT_RECOVERY_TIMEOUT_STRING);
     }
 
     /**
@@ -127,6 +172,19 @@ public class AMQPConnectionManagerGui extends AbstractConfigGui {
         manager.setSSLClientCert(cbSSLClientCert.isSelected());
         manager.setTimeout(timeout.getText());
         manager.setHeartbeat(heartbeat.getText());
+        manager.setChannelPoolSize(channelPoolSize.getText());
+        manager.setChannelPoolTimeout(channelPoolTimeout.getText());
+        manager.setConnections(connections.getText());
+        manager.setConnectionSelection(connectionSelection.getText());
+        manager.setDispatchPool(dispatchPool.getText());
+        manager.setDispatchThreads(dispatchThreads.getText());
+        manager.setConnectionMode(connectionMode.getText());
+        manager.setConnectRate(connectRate.getText());
+        manager.setConnectJitter(connectJitter.getText());
+        manager.setAutomaticRecovery(automaticRecovery.isSelected());
+        manager.setRecoveryDelay(recoveryDelay.getText());
+        manager.setRecoveryMaxDelay(recoveryMaxDelay.getText());
+        manager.setRecoveryTimeout(recoveryTimeout.getText());
     }
 
     /**
@@ -221,6 +279,58 @@ public class AMQPConnectionManagerGui extends AbstractConfigGui {
         gridBagConstraints.gridy = 10;
         serverSettings.add(heartbeat, gridBagConstraints);
 
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 11;
+        serverSettings.add(channelPoolSize, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 11;
+        serverSettings.add(channelPoolTimeout, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 12;
+        serverSettings.add(connections, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 12;
+        serverSettings.add(connectionSelection, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 13;
+        serverSettings.add(dispatchThreads, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 13;
+        serverSettings.add(dispatchPool, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 14;
+        serverSettings.add(connectRate, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 14;
+        serverSettings.add(connectionMode, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 15;
+        serverSettings.add(connectJitter, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 16;
+        serverSettings.add(recoveryDelay, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 16;
+        serverSettings.add(automaticRecovery, gridBagConstraints);
+
+        gridBagConstraints.gridx = 0;
+        gridBagConstraints.gridy = 17;
+        serverSettings.add(recoveryMaxDelay, gridBagConstraints);
+
+        gridBagConstraints.gridx = 1;
+        gridBagConstraints.gridy = 17;
+        serverSettings.add(recoveryTimeout, gridBagConstraints);
+
         gridBagConstraintsCommon.gridx = 0;
         gridBagConstraintsCommon.gridy = 0;
 
@@ -4,6 +4,7 @@ import javax.swing.JCheckBox;
 import javax.swing.JPanel;
 
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPConsumer;
@@ -17,8 +18,13 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
     protected JLabeledTextField receiveTimeout = new JLabeledTextField("Receive Timeout");
     protected JLabeledTextField prefetchCount = new JLabeledTextField("Prefetch Count");
+    protected JLabeledTextField bufferSize = new JLabeledTextField("Buffer Size");
     private final JCheckBox purgeQueue = new JCheckBox("Purge Queue", false);
     private final JCheckBox autoAck = new JCheckBox("Auto ACK", true);
+    protected JLabeledChoice ackStrategy = new JLabeledChoice("ACK Strategy", new String[]{
+            AMQPConsumer.ACK_PER_MESSAGE, AMQPConsumer.ACK_BATCH, AMQPConsumer.ACK_INTERVAL});
+    protected JLabeledTextField ackBatchSize = new JLabeledTextField("ACK Every N Messages");
+    protected JLabeledTextField ackInterval = new JLabeledTextField("ACK Every T ms");
     private final JCheckBox readResponse = new JCheckBox("Read Response", AMQPConsumer.DEFAULT_READ_RESPONSE);
 
     private JPanel mainPanel;
@@ -38,9 +44,15 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         prefetchCount.setPreferredSize(new Dimension(100,25));
         mainPanel.add(prefetchCount);
 
+        bufferSize.setPreferredSize(new Dimension(100,25));
+        mainPanel.add(bufferSize);
+
         mainPanel.add(receiveTimeout);
         mainPanel.add(purgeQueue);
         mainPanel.add(autoAck);
+        mainPanel.add(ackStrategy);
+        mainPanel.add(ackBatchSize);
+        mainPanel.add(ackInterval);
     }
 
     @Override
@@ -59,9 +71,13 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
         readResponse.setSelected(sampler.getReadResponseAsBoolean());
         prefetchCount.setText(sampler.getPrefetchCount());
+        bufferSize.setText(sampler.getBufferSize());
         receiveTimeout.setText(sampler.getReceiveTimeout());
         purgeQueue.setSelected(sampler.purgeQueue());
         autoAck.setSelected(sampler.autoAck());
+        ackStrategy.setText(sampler.getAckStrategy());
+        ackBatchSize.setText(sampler.getAckBatchSize());
+        ackInterval.setText(sampler.getAckInterval());
     }
 
     /**
@@ -72,9 +88,13 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
         super.clearGui();
         readResponse.setSelected(AMQPConsumer.DEFAULT_READ_RESPONSE);
         prefetchCount.setText(AMQPConsumer.DEFAULT_PREFETCH_COUNT_STRING);
+        bufferSize.setText(AMQPConsumer.DEFAULT_BUFFER_SIZE_STRING);
         receiveTimeout.setText("");
         purgeQueue.setSelected(false);
         autoAck.setSelected(true);
+        ackStrategy.setText(AMQPConsumer.DEFAULT_ACK_STRATEGY);
+        ackBatchSize.setText(AMQPConsumer.DEFAULT_ACK_BATCH_SIZE_STRING);
+        ackInterval.setText(AMQPConsumer.DEFAULT_ACK_INTERVAL_STRING);
     }
 
     /**
@@ -100,10 +120,14 @@ public class AMQPConsumerGui extends AMQPSamplerGui {
 
         sampler.setReadResponse(readResponse.isSelected());
         sampler.setPrefetchCount(prefetchCount.getText());
+        sampler.setBufferSize(bufferSize.getText());
 
         sampler.setReceiveTimeout(receiveTimeout.getText());
         sampler.setPurgeQueue(purgeQueue.isSelected());
         sampler.setAutoAck(autoAck.isSelected());
+        sampler.setAckStrategy(ackStrategy.getText());
+        sampler.setAckBatchSize(ackBatchSize.getText());
+        sampler.setAckInterval(ackInterval.getText());
 
     }
 
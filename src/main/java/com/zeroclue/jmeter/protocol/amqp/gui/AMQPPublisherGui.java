@@ -6,11 +6,16 @@ import javax.swing.*;
 
 import org.apache.jmeter.config.Arguments;
 import org.apache.jmeter.config.gui.ArgumentsPanel;
+import org.apache.jmeter.gui.util.FilePanel;
 import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
 import org.apache.jorphan.gui.JLabeledTextArea;
 import org.apache.jorphan.gui.JLabeledTextField;
 
 import com.zeroclue.jmeter.protocol.amqp.AMQPPublisher;
+import com.zeroclue.jmeter.protocol.amqp.MessageFile;
+import com.zeroclue.jmeter.protocol.amqp.PayloadCorpus;
+import com.zeroclue.jmeter.protocol.amqp.RoutingKeys;
 
 /**
  * AMQP Sampler
@@ -28,13 +33,24 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
     private JPanel mainPanel;
 
-    /*
-    private static final String[] CONFIG_CHOICES = {"File", "Static"};
-    private final JLabeledRadio configChoice = new JLabeledRadio("Message Source", CONFIG_CHOICES);
-    private final FilePanel messageFile = new FilePanel("Filename", ALL_FILES);
-    */
+    private final JLabeledChoice messageSource = new JLabeledChoice("Message Source", new String[]{
+            AMQPPublisher.SOURCE_STATIC, AMQPPublisher.SOURCE_FILE });
+    private final FilePanel messageFile = new FilePanel("Message File");
+    private final JLabeledChoice messageFileFormat = new JLabeledChoice("Records", new String[]{
+            MessageFile.NEWLINE, MessageFile.LENGTH_PREFIXED });
+    private final JLabeledChoice messageFileCursor = new JLabeledChoice("Threads Read", new String[]{
+            AMQPPublisher.CURSOR_SHARED, AMQPPublisher.CURSOR_PARTITIONED });
     private JLabeledTextArea message = new JLabeledTextArea("Message Content");
+    private JCheckBox messageTemplate = new JCheckBox("Message Is Template? ({{seq}} {{timestamp}} {{random:min:max}} {{thread}} {{uuid}} {{var:name}})",
+            AMQPPublisher.DEFAULT_MESSAGE_TEMPLATE);
     private JLabeledTextField messageRoutingKey = new JLabeledTextField("Routing Key");
+    private JLabeledChoice routingKeyDistribution = new JLabeledChoice("Routing Keys", new String[]{
+            AMQPPublisher.ROUTING_MESSAGE, RoutingKeys.UNIFORM, RoutingKeys.ROUND_ROBIN,
+            RoutingKeys.ZIPF, RoutingKeys.HASHED });
+    private JLabeledTextField routingKeySpace = new JLabeledTextField("Key Space (list, " + RoutingKeys.N + " pattern or {a|b}.{16} segments)");
+    private JLabeledTextField routingKeyCount = new JLabeledTextField("Pattern Keys");
+    private JLabeledTextField routingKeySkew = new JLabeledTextField("Zipf Skew");
+    private JLabeledTextField routingKeyField = new JLabeledTextField("Hashed Body Field");
     private JLabeledTextField messageType = new JLabeledTextField("Message Type");
     private JLabeledTextField replyToQueue = new JLabeledTextField("Reply-To Queue");
     private JLabeledTextField correlationId = new JLabeledTextField("Correlation Id");
@@ -42,6 +58,24 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
     private JCheckBox persistent = new JCheckBox("Persistent?", AMQPPublisher.DEFAULT_PERSISTENT);
     private JCheckBox useTx = new JCheckBox("Use Transactions?", AMQPPublisher.DEFAULT_USE_TX);
+    private JCheckBox mandatory = new JCheckBox("Mandatory?", AMQPPublisher.DEFAULT_MANDATORY);
+    private JLabeledTextField publishRate = new JLabeledTextField("Target Rate (msg/s for all threads, 0 = closed loop)");
+    private JCheckBox stampSendTime = new JCheckBox("Stamp Send Time?", AMQPPublisher.DEFAULT_STAMP_SEND_TIME);
+    private JCheckBox useConfirms = new JCheckBox("Use Publisher Confirms?", AMQPPublisher.DEFAULT_USE_CONFIRMS);
+    private JCheckBox confirmBatch = new JCheckBox("Confirm Whole Batch?", AMQPPublisher.DEFAULT_CONFIRM_BATCH);
+    private JLabeledTextField confirmWindow = new JLabeledTextField("Confirm Window (0 = unlimited)");
+    private JLabeledTextField confirmTimeout = new JLabeledTextField("Confirm Timeout (ms)");
+
+    private JLabeledChoice payloadSizes = new JLabeledChoice("Payload Sizes", new String[]{
+            AMQPPublisher.PAYLOAD_MESSAGE, PayloadCorpus.FIXED, PayloadCorpus.UNIFORM,
+            PayloadCorpus.NORMAL, PayloadCorpus.HISTOGRAM });
+    private JLabeledTextField payloadSize = new JLabeledTextField("Size / Mean (bytes)");
+    private JLabeledTextField payloadMinSize = new JLabeledTextField("Min Size");
+    private JLabeledTextField payloadMaxSize = new JLabeledTextField("Max Size");
+    private JLabeledTextField payloadStdDev = new JLabeledTextField("Std Dev");
+    private JLabeledTextField payloadSizeFile = new JLabeledTextField("Size Histogram File (size,weight lines)");
+    private JLabeledTextField payloadPoolSize = new JLabeledTextField("Distinct Bodies");
+    private JCheckBox payloadCompressible = new JCheckBox("Compressible Bodies?", AMQPPublisher.DEFAULT_PAYLOAD_COMPRESSIBLE);
 
     private ArgumentsPanel headers = new ArgumentsPanel("Headers");
 
@@ -73,13 +107,38 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         persistent.setSelected(sampler.getPersistent());
         useTx.setSelected(sampler.getUseTx());
+        mandatory.setSelected(sampler.getMandatory());
+        publishRate.setText(sampler.getPublishRate());
+        stampSendTime.setSelected(sampler.getStampSendTime());
+        useConfirms.setSelected(sampler.getUseConfirms());
+        confirmBatch.setSelected(sampler.getConfirmBatch());
+        confirmWindow.setText(sampler.getConfirmWindow());
+        confirmTimeout.setText(sampler.getConfirmTimeout());
+        messageSource.setText(sampler.getMessageSource());
+        messageFile.setFilename(sampler.getMessageFile());
+        messageFileFormat.setText(sampler.getMessageFileFormat());
+        messageFileCursor.setText(sampler.getMessageFileCursor());
+        payloadSizes.setText(sampler.getPayloadSizes());
+        payloadSize.setText(sampler.getPayloadSize());
+        payloadMinSize.setText(sampler.getPayloadMinSize());
+        payloadMaxSize.setText(sampler.getPayloadMaxSize());
+        payloadStdDev.setText(sampler.getPayloadStdDev());
+        payloadSizeFile.setText(sampler.getPayloadSizeFile());
+        payloadPoolSize.setText(sampler.getPayloadPoolSize());
+        payloadCompressible.setSelected(sampler.getPayloadCompressible());
 
         messageRoutingKey.setText(sampler.getMessageRoutingKey());
+        routingKeyDistribution.setText(sampler.getRoutingKeyDistribution());
+        routingKeySpace.setText(sampler.getRoutingKeySpace());
+        routingKeyCount.setText(sampler.getRoutingKeyCount());
+        routingKeySkew.setText(sampler.getRoutingKeySkew());
+        routingKeyField.setText(sampler.getRoutingKeyField());
         messageType.setText(sampler.getMessageType());
         replyToQueue.setText(sampler.getReplyToQueue());
         correlationId.setText(sampler.getCorrelationId());
         userId.setText(sampler.getUserId());
         message.setText(sampler.getMessage());
+        messageTemplate.setSelected(sampler.getMessageTemplate());
         configureHeaders(sampler);
     }
 
@@ -106,9 +165,34 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         sampler.setPersistent(persistent.isSelected());
         sampler.setUseTx(useTx.isSelected());
+        sampler.setMandatory(mandatory.isSelected());
+        sampler.setPublishRate(publishRate.getText());
+        sampler.setStampSendTime(stampSendTime.isSelected());
+        sampler.setUseConfirms(useConfirms.isSelected());
+        sampler.setConfirmBatch(confirmBatch.isSelected());
+        sampler.setConfirmWindow(confirmWindow.getText());
+        sampler.setConfirmTimeout(confirmTimeout.getText());
+        sampler.setMessageSource(messageSource.getText());
+        sampler.setMessageFile(messageFile.getFilename());
+        sampler.setMessageFileFormat(messageFileFormat.getText());
+        sampler.setMessageFileCursor(messageFileCursor.getText());
+        sampler.setPayloadSizes(payloadSizes.getText());
+        sampler.setPayloadSize(payloadSize.getText());
+        sampler.setPayloadMinSize(payloadMinSize.getText());
+        sampler.setPayloadMaxSize(payloadMaxSize.getText());
+        sampler.setPayloadStdDev(payloadStdDev.getText());
+        sampler.setPayloadSizeFile(payloadSizeFile.getText());
+        sampler.setPayloadPoolSize(payloadPoolSize.getText());
+        sampler.setPayloadCompressible(payloadCompressible.isSelected());
 
         sampler.setMessageRoutingKey(messageRoutingKey.getText());
+        sampler.setRoutingKeyDistribution(routingKeyDistribution.getText());
+        sampler.setRoutingKeySpace(routingKeySpace.getText());
+        sampler.setRoutingKeyCount(routingKeyCount.getText());
+        sampler.setRoutingKeySkew(routingKeySkew.getText());
+        sampler.setRoutingKeyField(routingKeyField.getText());
         sampler.setMessage(message.getText());
+        sampler.setMessageTemplate(messageTemplate.isSelected());
         sampler.setMessageType(messageType.getText());
         sampler.setReplyToQueue(replyToQueue.getText());
         sampler.setCorrelationId(correlationId.getText());
@@ -129,7 +213,25 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         super.init();
         persistent.setPreferredSize(new Dimension(100, 25));
         useTx.setPreferredSize(new Dimension(100, 25));
+        mandatory.setPreferredSize(new Dimension(100, 25));
+        publishRate.setPreferredSize(new Dimension(100, 25));
+        stampSendTime.setPreferredSize(new Dimension(100, 25));
+        useConfirms.setPreferredSize(new Dimension(100, 25));
+        confirmBatch.setPreferredSize(new Dimension(100, 25));
+        confirmWindow.setPreferredSize(new Dimension(100, 25));
+        confirmTimeout.setPreferredSize(new Dimension(100, 25));
+        payloadSize.setPreferredSize(new Dimension(100, 25));
+        payloadMinSize.setPreferredSize(new Dimension(100, 25));
+        payloadMaxSize.setPreferredSize(new Dimension(100, 25));
+        payloadStdDev.setPreferredSize(new Dimension(100, 25));
+        payloadSizeFile.setPreferredSize(new Dimension(100, 25));
+        payloadPoolSize.setPreferredSize(new Dimension(100, 25));
+        payloadCompressible.setPreferredSize(new Dimension(100, 25));
         messageRoutingKey.setPreferredSize(new Dimension(100, 25));
+        routingKeySpace.setPreferredSize(new Dimension(100, 25));
+        routingKeyCount.setPreferredSize(new Dimension(100, 25));
+        routingKeySkew.setPreferredSize(new Dimension(100, 25));
+        routingKeyField.setPreferredSize(new Dimension(100, 25));
         messageType.setPreferredSize(new Dimension(100, 25));
         replyToQueue.setPreferredSize(new Dimension(100, 25));
         correlationId.setPreferredSize(new Dimension(100, 25));
@@ -138,12 +240,37 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
 
         mainPanel.add(persistent);
         mainPanel.add(useTx);
+        mainPanel.add(mandatory);
+        mainPanel.add(publishRate);
+        mainPanel.add(stampSendTime);
+        mainPanel.add(useConfirms);
+        mainPanel.add(confirmBatch);
+        mainPanel.add(confirmWindow);
+        mainPanel.add(confirmTimeout);
         mainPanel.add(messageRoutingKey);
+        mainPanel.add(routingKeyDistribution);
+        mainPanel.add(routingKeySpace);
+        mainPanel.add(routingKeyCount);
+        mainPanel.add(routingKeySkew);
+        mainPanel.add(routingKeyField);
         mainPanel.add(messageType);
         mainPanel.add(replyToQueue);
         mainPanel.add(correlationId);
         mainPanel.add(userId);
         mainPanel.add(headers);
+        mainPanel.add(messageSource);
+        mainPanel.add(messageFile);
+        mainPanel.add(messageFileFormat);
+        mainPanel.add(messageFileCursor);
+        mainPanel.add(payloadSizes);
+        mainPanel.add(payloadSize);
+        mainPanel.add(payloadMinSize);
+        mainPanel.add(payloadMaxSize);
+        mainPanel.add(payloadStdDev);
+        mainPanel.add(payloadSizeFile);
+        mainPanel.add(payloadPoolSize);
+        mainPanel.add(payloadCompressible);
+        mainPanel.add(messageTemplate);
         mainPanel.add(message);
     }
 
@@ -155,13 +282,38 @@ public class AMQPPublisherGui extends AMQPSamplerGui {
         super.clearGui();
         persistent.setSelected(AMQPPublisher.DEFAULT_PERSISTENT);
         useTx.setSelected(AMQPPublisher.DEFAULT_USE_TX);
+        mandatory.setSelected(AMQPPublisher.DEFAULT_MANDATORY);
+        publishRate.setText(AMQPPublisher.DEFAULT_PUBLISH_RATE_STRING);
+        stampSendTime.setSelected(AMQPPublisher.DEFAULT_STAMP_SEND_TIME);
+        useConfirms.setSelected(AMQPPublisher.DEFAULT_USE_CONFIRMS);
+        confirmBatch.setSelected(AMQPPublisher.DEFAULT_CONFIRM_BATCH);
+        confirmWindow.setText(AMQPPublisher.DEFAULT_CONFIRM_WINDOW_STRING);
+        confirmTimeout.setText(AMQPPublisher.DEFAULT_CONFIRM_TIMEOUT_STRING);
+        messageSource.setText(AMQPPublisher.DEFAULT_MESSAGE_SOURCE);
+        messageFile.setFilename("");
+        messageFileFormat.setText(AMQPPublisher.DEFAULT_MESSAGE_FILE_FORMAT);
+        messageFileCursor.setText(AMQPPublisher.DEFAULT_MESSAGE_FILE_CURSOR);
+        payloadSizes.setText(AMQPPublisher.DEFAULT_PAYLOAD_SIZES);
+        payloadSize.setText(AMQPPublisher.DEFAULT_PAYLOAD_SIZE_STRING);
+        payloadMinSize.setText(AMQPPublisher.DEFAULT_PAYLOAD_MIN_SIZE_STRING);
+        payloadMaxSize.setText(AMQPPublisher.DEFAULT_PAYLOAD_MAX_SIZE_STRING);
+        payloadStdDev.setText(AMQPPublisher.DEFAULT_PAYLOAD_STD_DEV_STRING);
+        payloadSizeFile.setText("");
+        payloadPoolSize.setText(AMQPPublisher.DEFAULT_PAYLOAD_POOL_SIZE_STRING);
+        payloadCompressible.setSelected(AMQPPublisher.DEFAULT_PAYLOAD_COMPRESSIBLE);
         messageRoutingKey.setText("");
+        routingKeyDistribution.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_DISTRIBUTION);
+        routingKeySpace.setText("");
+        routingKeyCount.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_COUNT_STRING);
+        routingKeySkew.setText(AMQPPublisher.DEFAULT_ROUTING_KEY_SKEW_STRING);
+        routingKeyField.setText("");
         messageType.setText("");
         replyToQueue.setText("");
         correlationId.setText("");
         userId.setText("");
         headers.clearGui();
         message.setText("");
+        messageTemplate.setSelected(AMQPPublisher.DEFAULT_MESSAGE_TEMPLATE);
     }
 
     private void configureHeaders(AMQPPublisher sampler)
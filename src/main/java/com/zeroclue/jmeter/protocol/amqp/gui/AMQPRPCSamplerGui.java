@@ -0,0 +1,119 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import java.awt.Dimension;
+
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledTextArea;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPRPCSampler;
+
+/**
+ * GUI for the AMQP RPC sampler. The exchange and routing key are where requests are sent.
+ */
+public class AMQPRPCSamplerGui extends AMQPSamplerGui {
+
+    private static final long serialVersionUID = 1L;
+
+    private JPanel mainPanel;
+
+    private JLabeledTextField maxInFlight = new JLabeledTextField("Max In Flight per Thread (0 = unlimited)");
+    private JLabeledTextField replyTimeout = new JLabeledTextField("Reply Timeout (ms)");
+    private JCheckBox directReplyTo = new JCheckBox("Direct Reply-To?", AMQPRPCSampler.DEFAULT_DIRECT_REPLY_TO);
+    private JLabeledTextArea message = new JLabeledTextArea("Request Content");
+
+    public AMQPRPCSamplerGui(){
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    @Override
+    public String getStaticLabel() {
+        return "AMQP RPC Sampler";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+        if (!(element instanceof AMQPRPCSampler)) return;
+        AMQPRPCSampler sampler = (AMQPRPCSampler) element;
+
+        maxInFlight.setText(sampler.getMaxInFlight());
+        replyTimeout.setText(sampler.getReplyTimeout());
+        directReplyTo.setSelected(sampler.getDirectReplyTo());
+        message.setText(sampler.getMessage());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPRPCSampler sampler = new AMQPRPCSampler();
+        modifyTestElement(sampler);
+        return sampler;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement te) {
+        AMQPRPCSampler sampler = (AMQPRPCSampler) te;
+        sampler.clear();
+        configureTestElement(sampler);
+
+        super.modifyTestElement(sampler);
+
+        sampler.setMaxInFlight(maxInFlight.getText());
+        sampler.setReplyTimeout(replyTimeout.getText());
+        sampler.setDirectReplyTo(directReplyTo.isSelected());
+        sampler.setMessage(message.getText());
+    }
+
+    @Override
+    protected void setMainPanel(JPanel panel){
+        mainPanel = panel;
+    }
+
+    /*
+     * Helper method to set up the GUI screen
+     */
+    @Override
+    protected final void init() {
+        super.init();
+        maxInFlight.setPreferredSize(new Dimension(100, 25));
+        replyTimeout.setPreferredSize(new Dimension(100, 25));
+        message.setPreferredSize(new Dimension(400, 150));
+
+        mainPanel.add(maxInFlight);
+        mainPanel.add(replyTimeout);
+        mainPanel.add(directReplyTo);
+        mainPanel.add(message);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        maxInFlight.setText(AMQPRPCSampler.DEFAULT_MAX_IN_FLIGHT_STRING);
+        replyTimeout.setText(AMQPRPCSampler.DEFAULT_REPLY_TIMEOUT_STRING);
+        directReplyTo.setSelected(AMQPRPCSampler.DEFAULT_DIRECT_REPLY_TO);
+        message.setText("");
+    }
+}
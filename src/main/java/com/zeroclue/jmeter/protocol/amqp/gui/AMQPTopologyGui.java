@@ -0,0 +1,197 @@
+package com.zeroclue.jmeter.protocol.amqp.gui;
+
+import java.awt.BorderLayout;
+
+import javax.swing.BorderFactory;
+import javax.swing.JCheckBox;
+import javax.swing.JPanel;
+
+import org.apache.jmeter.config.gui.AbstractConfigGui;
+import org.apache.jmeter.gui.util.VerticalPanel;
+import org.apache.jmeter.testelement.TestElement;
+import org.apache.jorphan.gui.JLabeledChoice;
+import org.apache.jorphan.gui.JLabeledTextField;
+
+import com.zeroclue.jmeter.protocol.amqp.AMQPConnectionManager;
+import com.zeroclue.jmeter.protocol.amqp.AMQPTopology;
+
+/**
+ * GUI for the AMQP topology provisioned when the test starts, on a connection of its own.
+ */
+public class AMQPTopologyGui extends AbstractConfigGui {
+    private static final long serialVersionUID = 1L;
+
+    private JLabeledTextField queuePattern = new JLabeledTextField("Queue Name (" + AMQPTopology.N + " = number)");
+    private JLabeledTextField exchangePattern = new JLabeledTextField("Exchange Name (" + AMQPTopology.N + " for one per queue)");
+    private JLabeledChoice exchangeType = new JLabeledChoice("Exchange Type", new String[]{ "direct", "topic", "headers", "fanout"});
+    private JLabeledTextField bindingKeyPattern = new JLabeledTextField("Binding Key");
+    private JLabeledTextField count = new JLabeledTextField("Count");
+    private JLabeledTextField channels = new JLabeledTextField("Parallel Channels");
+    private final JCheckBox durable = new JCheckBox("Durable?", AMQPTopology.DEFAULT_DURABLE);
+    private final JCheckBox teardown = new JCheckBox("Delete When The Test Ends?", AMQPTopology.DEFAULT_TEARDOWN);
+    private JLabeledTextField virtualHost = new JLabeledTextField("Virtual Host");
+    private JLabeledTextField host = new JLabeledTextField("Host");
+    private JLabeledTextField port = new JLabeledTextField("Port");
+    private JLabeledTextField username = new JLabeledTextField("Username");
+    private JLabeledTextField password = new JLabeledTextField("Password");
+    private final JCheckBox ssl = new JCheckBox("SSL?", AMQPTopology.DEFAULT_SSL);
+    private final JCheckBox sslClientCert = new JCheckBox("Client SSL Cert?", AMQPTopology.DEFAULT_SSL_CLIENT_CERT);
+    private JLabeledTextField pathToKeyStore = new JLabeledTextField("Path to Key Store");
+    private JLabeledTextField keyStorePassword = new JLabeledTextField("Key Store Password");
+    private JLabeledTextField pathToTrustStore = new JLabeledTextField("Path to Trust Store");
+    private JLabeledTextField trustStorePassword = new JLabeledTextField("Trust Store Password");
+
+    public AMQPTopologyGui() {
+        init();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getLabelResource() {
+        return this.getClass().getSimpleName();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getStaticLabel() {
+        return "AMQP Topology";
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void configure(TestElement element) {
+        super.configure(element);
+
+        if (!(element instanceof AMQPTopology)) return;
+        AMQPTopology topology = (AMQPTopology) element;
+
+        queuePattern.setText(topology.getQueuePattern());
+        exchangePattern.setText(topology.getExchangePattern());
+        exchangeType.setText(topology.getExchangeType());
+        bindingKeyPattern.setText(topology.getBindingKeyPattern());
+        count.setText(topology.getCount());
+        channels.setText(topology.getChannels());
+        durable.setSelected(topology.getDurable());
+        teardown.setSelected(topology.getTeardown());
+        virtualHost.setText(topology.getVirtualHost());
+        host.setText(topology.getHost());
+        port.setText(topology.getPort());
+        username.setText(topology.getUsername());
+        password.setText(topology.getPassword());
+        ssl.setSelected(topology.getSSL());
+        sslClientCert.setSelected(topology.getSSLClientCert());
+        pathToKeyStore.setText(topology.getPathToKeyStore());
+        keyStorePassword.setText(topology.getKeyStorePassword());
+        pathToTrustStore.setText(topology.getPathToTrustStore());
+        trustStorePassword.setText(topology.getTrustStorePassword());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public TestElement createTestElement() {
+        AMQPTopology topology = new AMQPTopology();
+        modifyTestElement(topology);
+        return topology;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void modifyTestElement(TestElement element) {
+        AMQPTopology topology = (AMQPTopology) element;
+        topology.clear();
+        configureTestElement(topology);
+
+        topology.setQueuePattern(queuePattern.getText());
+        topology.setExchangePattern(exchangePattern.getText());
+        topology.setExchangeType(exchangeType.getText());
+        topology.setBindingKeyPattern(bindingKeyPattern.getText());
+        topology.setCount(count.getText());
+        topology.setChannels(channels.getText());
+        topology.setDurable(durable.isSelected());
+        topology.setTeardown(teardown.isSelected());
+        topology.setVirtualHost(virtualHost.getText());
+        topology.setHost(host.getText());
+        topology.setPort(port.getText());
+        topology.setUsername(username.getText());
+        topology.setPassword(password.getText());
+        topology.setSSL(ssl.isSelected());
+        topology.setSSLClientCert(sslClientCert.isSelected());
+        topology.setPathToKeyStore(pathToKeyStore.getText());
+        topology.setKeyStorePassword(keyStorePassword.getText());
+        topology.setPathToTrustStore(pathToTrustStore.getText());
+        topology.setTrustStorePassword(trustStorePassword.getText());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clearGui() {
+        super.clearGui();
+        queuePattern.setText("");
+        exchangePattern.setText("");
+        exchangeType.setText(AMQPTopology.DEFAULT_EXCHANGE_TYPE);
+        bindingKeyPattern.setText("");
+        count.setText(AMQPTopology.DEFAULT_COUNT_STRING);
+        channels.setText(AMQPTopology.DEFAULT_CHANNELS_STRING);
+        durable.setSelected(AMQPTopology.DEFAULT_DURABLE);
+        teardown.setSelected(AMQPTopology.DEFAULT_TEARDOWN);
+        virtualHost.setText(AMQPTopology.DEFAULT_VIRTUAL_HOST);
+        host.setText(AMQPTopology.DEFAULT_HOST);
+        port.setText(AMQPConnectionManager.DEFAULT_PORT_STRING);
+        username.setText(AMQPTopology.DEFAULT_USERNAME);
+        password.setText(AMQPTopology.DEFAULT_PASSWORD);
+        ssl.setSelected(AMQPTopology.DEFAULT_SSL);
+        sslClientCert.setSelected(AMQPTopology.DEFAULT_SSL_CLIENT_CERT);
+        pathToKeyStore.setText("");
+        keyStorePassword.setText("");
+        pathToTrustStore.setText("");
+        trustStorePassword.setText("");
+    }
+
+    private void init() {
+        setLayout(new BorderLayout(0, 5));
+        setBorder(makeBorder());
+        add(makeTitlePanel(), BorderLayout.NORTH); // Add the standard title
+
+        JPanel topologySettings = new VerticalPanel();
+        topologySettings.setBorder(BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), "Topology"));
+        topologySettings.add(queuePattern);
+        topologySettings.add(exchangePattern);
+        topologySettings.add(exchangeType);
+        topologySettings.add(bindingKeyPattern);
+        topologySettings.add(count);
+        topologySettings.add(durable);
+        topologySettings.add(channels);
+        topologySettings.add(teardown);
+
+        JPanel connectionSettings = new VerticalPanel();
+        connectionSettings.setBorder(BorderFactory.createTitledBorder(BorderFactory.createEtchedBorder(), "Connection"));
+        connectionSettings.add(host);
+        connectionSettings.add(port);
+        connectionSettings.add(virtualHost);
+        connectionSettings.add(username);
+        connectionSettings.add(password);
+        connectionSettings.add(ssl);
+        connectionSettings.add(sslClientCert);
+        connectionSettings.add(pathToKeyStore);
+        connectionSettings.add(keyStorePassword);
+        connectionSettings.add(pathToTrustStore);
+        connectionSettings.add(trustStorePassword);
+
+        JPanel mainPanel = new VerticalPanel();
+        mainPanel.add(connectionSettings);
+        mainPanel.add(topologySettings);
+        add(mainPanel);
+    }
+}